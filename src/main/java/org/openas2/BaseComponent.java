@@ -85,6 +85,25 @@ public class BaseComponent implements Component
 		return 0;
 	}
 
+	public int getParameterInt(@Nonnull final String key, final int defaultValue) throws InvalidParameterException
+	{
+		String value = getParameter(key, false);
+
+		if (value != null)
+		{
+			try
+			{
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException nfe)
+			{
+				throw new InvalidParameterException(this, key, value);
+			}
+		}
+
+		return defaultValue;
+	}
+
 	@Override
 	@Nonnull
 	public Map<String, Serializable> getParameters()
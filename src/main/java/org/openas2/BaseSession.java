@@ -1,6 +1,8 @@
 package org.openas2;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.activation.CommandMap;
@@ -10,12 +12,22 @@ import javax.annotation.Nonnull;
 import org.openas2.cert.CertificateFactory;
 import org.openas2.partner.PartnershipFactory;
 import org.openas2.processor.Processor;
+import org.openas2.util.TaskScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 public abstract class BaseSession implements Session 
 {
+    /** Logger for the class. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BaseSession.class);
+
     private Map<String, Component> components;
 
+    private TaskScheduler scheduler;
+
+    private final List<Runnable> shutdownHooks = new ArrayList<Runnable>();
+
     /**
      * Creates a <code>BaseSession</code> object, then calls the <code>initJavaMail()</code> method.
      *
@@ -147,6 +159,63 @@ public abstract class BaseSession implements Session
         return (Processor) getComponent(Processor.COMPID_PROCESSOR);
     }
 
+    /**
+     * Retrieves the scheduler running the periodic and delayed tasks of the components, created with the default
+     * number of threads when none is set.
+     *
+     * @return the scheduler of the session
+     */
+    @Override
+    @Nonnull
+    public synchronized TaskScheduler getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = new TaskScheduler("scheduler", TaskScheduler.getDefaultThreads());
+        }
+
+        return scheduler;
+    }
+
+    public synchronized void setScheduler(TaskScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void addShutdownHook(@Nonnull Runnable hook)
+    {
+        synchronized (shutdownHooks)
+        {
+            shutdownHooks.add(hook);
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        List<Runnable> hooks;
+        synchronized (shutdownHooks)
+        {
+            hooks = new ArrayList<Runnable>(shutdownHooks);
+            shutdownHooks.clear();
+        }
+
+        for (int i = hooks.size() - 1; i >= 0; i--)
+        {
+            try
+            {
+                hooks.get(i).run();
+            }
+            catch (RuntimeException re)
+            {
+                LOGGER.error("shutdown hook failed", re);
+            }
+        }
+
+        getScheduler().shutdown();
+    }
+
     /**
      * Adds a group of content handlers to the Mailcap <code>CommandMap</code>. These handlers are
      * used by the JavaMail API to encode and decode information of specific mime types.
@@ -7,6 +7,7 @@ import javax.annotation.Nonnull;
 import org.openas2.cert.CertificateFactory;
 import org.openas2.partner.PartnershipFactory;
 import org.openas2.processor.Processor;
+import org.openas2.util.TaskScheduler;
 
 
 /**
@@ -93,4 +94,26 @@ public interface Session
      */
     @Nonnull
     Processor getProcessor() throws ComponentNotFoundException;
+
+    /**
+     * Retrieves the scheduler running the periodic and delayed tasks of the components.
+     *
+     * @return the scheduler of the session
+     */
+    @Nonnull
+    TaskScheduler getScheduler();
+
+    /**
+     * Registers a task run when the session is shut down, to stop the threads of a component and finish its pending
+     * work.
+     *
+     * @param hook the task
+     */
+    void addShutdownHook(@Nonnull Runnable hook);
+
+    /**
+     * Shuts the session down once its active modules are stopped: runs the shutdown hooks, the last added first, then
+     * stops the scheduler.
+     */
+    void shutdown();
 }
@@ -18,6 +18,8 @@ import org.openas2.cmd.processor.BaseCommandProcessor;
 import org.openas2.partner.PartnershipFactory;
 import org.openas2.processor.Processor;
 import org.openas2.processor.ProcessorModule;
+import org.openas2.util.MessageIdGenerator;
+import org.openas2.util.TaskScheduler;
 import org.openas2.util.XMLUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +51,12 @@ public class XMLSession extends BaseSession implements CommandRegistryFactory
 	
 	public static final String PARAM_BASE_DIRECTORY = "basedir";
 
+	/** Attribute of the root element giving the node ID used in message IDs. */
+	public static final String PARAM_NODE_ID = "nodeid";
+
+	/** Attribute of the root element giving the number of threads running the scheduled tasks. */
+	public static final String PARAM_SCHEDULER_THREADS = "schedulerthreads";
+
 	/** Logger for the class. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(XMLSession.class);
 
@@ -106,6 +114,24 @@ public class XMLSession extends BaseSession implements CommandRegistryFactory
 		Document document = parser.parse(in);
 		Element root = document.getDocumentElement();
 
+		if (root.hasAttribute(PARAM_NODE_ID))
+		{
+			MessageIdGenerator.setNodeId(root.getAttribute(PARAM_NODE_ID));
+		}
+
+		if (root.hasAttribute(PARAM_SCHEDULER_THREADS))
+		{
+			String threads = root.getAttribute(PARAM_SCHEDULER_THREADS);
+			try
+			{
+				setScheduler(new TaskScheduler("scheduler", Integer.parseInt(threads)));
+			}
+			catch (IllegalArgumentException iae)
+			{
+				throw new OpenAS2Exception("Invalid " + PARAM_SCHEDULER_THREADS + ": " + threads);
+			}
+		}
+
 		NodeList rootNodes = root.getChildNodes();
 		Node rootNode;
 		String nodeName;
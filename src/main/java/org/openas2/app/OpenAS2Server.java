@@ -109,6 +109,7 @@ public class OpenAS2Server
 				{
 					same.terminate();
 				}
+				session.shutdown();
 			}
 
 			if (cmd != null)
@@ -0,0 +1,76 @@
+package org.openas2.app.resend;
+
+import java.util.Map;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.cmd.BaseCommand;
+import org.openas2.cmd.CommandResult;
+import org.openas2.processor.ProcessorModule;
+import org.openas2.processor.resender.DirectoryResenderModule;
+import org.openas2.processor.resender.ResendQueue;
+
+/**
+ * shows the messages queued by the directory resender modules and the rate they are resent at
+ */
+public class ResendStatusCommand extends BaseCommand
+{
+	@Override
+	public String getDefaultDescription()
+	{
+		return "Shows the messages waiting to be resent, by partnership, and the resend rate.";
+	}
+
+	@Override
+	public String getDefaultName()
+	{
+		return "status";
+	}
+
+	@Override
+	public String getDefaultUsage()
+	{
+		return "status";
+	}
+
+	@Override
+	public CommandResult execute(Object[] params)
+	{
+		CommandResult result = new CommandResult(CommandResult.TYPE_OK);
+
+		try
+		{
+			for (ProcessorModule module : getSession().getProcessor().getModules())
+			{
+				if (module instanceof DirectoryResenderModule)
+				{
+					DirectoryResenderModule resender = (DirectoryResenderModule)module;
+					ResendQueue queue = resender.getQueue();
+
+					result.getResults().add(resender.getName() + ": " + (queue.size() - queue.getInProgress()) + " queued, "
+							+ queue.getInProgress() + " in progress, " + resender.getDrainRate()
+							+ " resent in the last minute, " + resender.getResentCount() + " resent and "
+							+ resender.getFailedCount() + " failed since started");
+
+					for (Map.Entry<String, Integer> shard : queue.getShardSizes().entrySet())
+					{
+						String partnership = (shard.getKey().length() > 0) ? shard.getKey() : "(no partnership)";
+						result.getResults().add("  " + partnership + ": " + shard.getValue());
+					}
+				}
+			}
+		}
+		catch (OpenAS2Exception oae)
+		{
+			oae.terminate();
+
+			return new CommandResult(oae);
+		}
+
+		if (result.getResults().isEmpty())
+		{
+			return new CommandResult(CommandResult.TYPE_ERROR, "No directory resender module");
+		}
+
+		return result;
+	}
+}
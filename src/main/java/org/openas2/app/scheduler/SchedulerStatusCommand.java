@@ -0,0 +1,57 @@
+package org.openas2.app.scheduler;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.openas2.cmd.BaseCommand;
+import org.openas2.cmd.CommandResult;
+import org.openas2.util.TaskScheduler;
+
+/**
+ * shows the tasks run by the scheduler of the session, their execution time and lag
+ */
+public class SchedulerStatusCommand extends BaseCommand
+{
+	@Override
+	public String getDefaultDescription()
+	{
+		return "Shows the scheduled tasks, their execution time and how late they started.";
+	}
+
+	@Override
+	public String getDefaultName()
+	{
+		return "status";
+	}
+
+	@Override
+	public String getDefaultUsage()
+	{
+		return "status";
+	}
+
+	@Override
+	public CommandResult execute(Object[] params)
+	{
+		TaskScheduler scheduler = getSession().getScheduler();
+		CommandResult result = new CommandResult(CommandResult.TYPE_OK, scheduler.getThreads() + " threads");
+
+		List<TaskScheduler.Statistics> statistics = scheduler.getStatistics();
+		Collections.sort(statistics, new Comparator<TaskScheduler.Statistics>()
+		{
+			@Override
+			public int compare(TaskScheduler.Statistics s1, TaskScheduler.Statistics s2)
+			{
+				return s1.getName().compareTo(s2.getName());
+			}
+		});
+
+		for (TaskScheduler.Statistics stats : statistics)
+		{
+			result.getResults().add(stats.toString());
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,142 @@
+package org.openas2.app.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.WrappedException;
+import org.openas2.cmd.BaseCommand;
+import org.openas2.cmd.CommandResult;
+import org.openas2.processor.ProcessorModule;
+import org.openas2.processor.storage.SegmentStore;
+import org.openas2.processor.storage.SegmentedStorageModule;
+import org.openas2.util.FileTransfer;
+
+/**
+ * extracts a message, its headers or its MDN from the segmented storage modules
+ */
+public class ExtractMessageCommand extends BaseCommand
+{
+	@Override
+	public String getDefaultDescription()
+	{
+		return "Extracts a stored message, its headers or its MDN to a file.";
+	}
+
+	@Override
+	public String getDefaultName()
+	{
+		return "extract";
+	}
+
+	@Override
+	public String getDefaultUsage()
+	{
+		return "extract <message-id> <file> [message|headers|mdn]";
+	}
+
+	@Override
+	public CommandResult execute(Object[] params)
+	{
+		if (params.length < 2)
+		{
+			return new CommandResult(CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage());
+		}
+
+		String messageId = params[0].toString();
+		File file = new File(params[1].toString());
+		byte type;
+
+		try
+		{
+			type = SegmentStore.getType((params.length > 2) ? params[2].toString() : "message");
+		}
+		catch (IllegalArgumentException iae)
+		{
+			return new CommandResult(CommandResult.TYPE_ERROR, iae.getMessage());
+		}
+
+		try
+		{
+			boolean found = false;
+
+			for (ProcessorModule module : getSession().getProcessor().getModules())
+			{
+				if (module instanceof SegmentedStorageModule)
+				{
+					if (extract((SegmentedStorageModule)module, messageId, type, file))
+					{
+						found = true;
+						break;
+					}
+				}
+			}
+
+			if (!found)
+			{
+				return new CommandResult(CommandResult.TYPE_ERROR, "No " + SegmentStore.getTypeName(type)
+						+ " stored for " + messageId);
+			}
+
+			return new CommandResult(CommandResult.TYPE_OK, "Extracted " + SegmentStore.getTypeName(type) + " of "
+					+ messageId + " to " + file.getAbsolutePath());
+		}
+		catch (OpenAS2Exception oae)
+		{
+			oae.terminate();
+
+			return new CommandResult(oae);
+		}
+	}
+
+	private boolean extract(SegmentedStorageModule module, String messageId, byte type, File file)
+			throws OpenAS2Exception
+	{
+		if (!module.contains(messageId, type))
+		{
+			return false;
+		}
+
+		try
+		{
+			// the file is only replaced once the record is copied completely
+			File parent = file.getAbsoluteFile().getParentFile();
+			File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+			boolean found = false;
+
+			try
+			{
+				OutputStream out = new FileOutputStream(tempFile);
+
+				try
+				{
+					found = module.extract(messageId, type, out);
+				}
+				finally
+				{
+					out.close();
+				}
+
+				if (found)
+				{
+					FileTransfer.move(tempFile, file);
+				}
+			}
+			finally
+			{
+				if (!found)
+				{
+					tempFile.delete();
+				}
+			}
+
+			return found;
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+	}
+}
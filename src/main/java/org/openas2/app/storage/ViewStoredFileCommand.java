@@ -0,0 +1,132 @@
+package org.openas2.app.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.openas2.cmd.BaseCommand;
+import org.openas2.cmd.CommandResult;
+import org.openas2.processor.storage.StorageCodecs;
+
+/**
+ * shows a page of a stored file, decompressed when it has been stored with compression
+ */
+public class ViewStoredFileCommand extends BaseCommand
+{
+	/** Bytes shown when no length is given. */
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+	/** Most bytes shown at once. */
+	public static final int MAX_PAGE_SIZE = 1024 * 1024;
+
+	/** Shows every byte as one character, whatever the content of the file. */
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	@Override
+	public String getDefaultDescription()
+	{
+		return "Shows a stored message, headers or MDN file, compressed or not.";
+	}
+
+	@Override
+	public String getDefaultName()
+	{
+		return "view";
+	}
+
+	@Override
+	public String getDefaultUsage()
+	{
+		return "view <file> [offset] [length]";
+	}
+
+	@Override
+	public CommandResult execute(Object[] params)
+	{
+		if (params.length < 1)
+		{
+			return new CommandResult(CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage());
+		}
+
+		File file = new File(params[0].toString());
+		long offset;
+		int length;
+
+		try
+		{
+			offset = (params.length > 1) ? Long.parseLong(params[1].toString()) : 0;
+			length = (params.length > 2) ? Integer.parseInt(params[2].toString()) : DEFAULT_PAGE_SIZE;
+		}
+		catch (NumberFormatException nfe)
+		{
+			return new CommandResult(CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage());
+		}
+
+		if ((offset < 0) || (length <= 0))
+		{
+			return new CommandResult(CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage());
+		}
+		length = Math.min(length, MAX_PAGE_SIZE);
+
+		if (!file.isFile())
+		{
+			return new CommandResult(CommandResult.TYPE_ERROR, "No such file: " + file.getAbsolutePath());
+		}
+
+		try
+		{
+			byte[] page = new byte[length];
+			int read = 0;
+			boolean more;
+			InputStream in = StorageCodecs.open(file);
+
+			try
+			{
+				long skipped = 0;
+				while (skipped < offset)
+				{
+					long count = in.skip(offset - skipped);
+					if (count <= 0)
+					{
+						if (in.read() < 0)
+						{
+							break;
+						}
+						count = 1;
+					}
+					skipped += count;
+				}
+
+				while (read < length)
+				{
+					int count = in.read(page, read, length - read);
+					if (count < 0)
+					{
+						break;
+					}
+					read += count;
+				}
+
+				more = (read == length) && (in.read() >= 0);
+			}
+			finally
+			{
+				in.close();
+			}
+
+			CommandResult result = new CommandResult(CommandResult.TYPE_OK, new String(page, 0, read, CHARSET));
+			if (more)
+			{
+				result.getResults().add("... more follows: view " + params[0] + " " + (offset + read));
+			}
+
+			return result;
+		}
+		catch (IOException ioe)
+		{
+			return new CommandResult(CommandResult.TYPE_ERROR, "Unable to read " + file.getAbsolutePath() + ": "
+					+ ioe.getMessage());
+		}
+	}
+}
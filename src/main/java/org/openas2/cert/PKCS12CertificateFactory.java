@@ -163,7 +163,7 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
 
             int interval = getParameterInt(PARAM_INTERVAL, true);
             File file = new File(getFilename());
-            fileMonitor = new FileMonitor(file, interval);
+            fileMonitor = new FileMonitor(file, interval, getSession().getScheduler());
             fileMonitor.addListener(this);
         }
 
@@ -1,11 +1,9 @@
 package org.openas2.lib.helper;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
@@ -83,34 +81,30 @@ public class BCCryptoHelper implements ICryptoHelper
 
 		MessageDigest md = MessageDigest.getInstance(micAlg, "BC");
 
-		// convert the Mime data to a byte array, then to an InputStream
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		// digest the Mime data as it is written, nothing of it is kept
+		MICOutputStream micOut = new MICOutputStream(md);
 
 		if (includeHeaders)
 		{
-			part.writeTo(bOut);
+			part.writeTo(micOut);
 		}
 		else
 		{
-			IOUtil.copy(part.getInputStream(), bOut);
-		}
-
-		byte[] data = bOut.toByteArray();
-
-		InputStream bIn = trimCRLFPrefix(data);
+			InputStream in = part.getInputStream();
 
-		// calculate the hash of the data and mime header
-		DigestInputStream digIn = new DigestInputStream(bIn, md);
-
-		byte[] buf = new byte[4096];
-
-		while (digIn.read(buf) >= 0)
-		{
+			try
+			{
+				IOUtil.copy(in, micOut);
+			}
+			finally
+			{
+				in.close();
+			}
 		}
 
-		bOut.close();
+		micOut.close();
 
-		byte[] mic = digIn.getMessageDigest().digest();
+		byte[] mic = md.digest();
 		String micString = new String(Base64.encode(mic));
 		StringBuffer micResult = new StringBuffer(micString);
 		micResult.append(", ").append(digest);
@@ -368,30 +362,6 @@ public class BCCryptoHelper implements ICryptoHelper
 		return response;
 	}
 
-	protected InputStream trimCRLFPrefix(byte[] data)
-	{
-		ByteArrayInputStream bIn = new ByteArrayInputStream(data);
-
-		int scanPos = 0;
-		int len = data.length;
-
-		while (scanPos < (len - 1))
-		{
-			if (new String(data, scanPos, 2).equals("\r\n"))
-			{
-				bIn.read();
-				bIn.read();
-				scanPos += 2;
-			}
-			else
-			{
-				return bIn;
-			}
-		}
-
-		return bIn;
-	}
-
 	@Override
 	public KeyStore getKeyStore() throws KeyStoreException, NoSuchProviderException
 	{
@@ -420,4 +390,78 @@ public class BCCryptoHelper implements ICryptoHelper
 			fIn.close();
 		}
 	}
+
+	/**
+	 * Digests the data written to it, skipping the CRLFs it starts with.
+	 */
+	private static final class MICOutputStream extends OutputStream
+	{
+		private final MessageDigest md;
+
+		/** Whether the data written so far is only CRLFs. */
+		private boolean prefix = true;
+
+		/** Whether a CR of the prefix is held until the next byte. */
+		private boolean pendingCR;
+
+		MICOutputStream(MessageDigest md)
+		{
+			this.md = md;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			if (prefix)
+			{
+				if (pendingCR)
+				{
+					pendingCR = false;
+
+					if (b == '\n')
+					{
+						return;
+					}
+
+					prefix = false;
+					md.update((byte)'\r');
+				}
+				else if (b == '\r')
+				{
+					pendingCR = true;
+					return;
+				}
+				else
+				{
+					prefix = false;
+				}
+			}
+
+			md.update((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			while (prefix && (len > 0))
+			{
+				write(b[off++]);
+				len--;
+			}
+
+			md.update(b, off, len);
+		}
+
+		@Override
+		public void close()
+		{
+			if (pendingCR)
+			{
+				// a last lone CR
+				pendingCR = false;
+				prefix = false;
+				md.update((byte)'\r');
+			}
+		}
+	}
 }
@@ -1,16 +1,31 @@
 package org.openas2.lib.partner;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.openas2.lib.util.GeneralUtil;
 
 public class BasicPartnerStore implements IPartnerStore
 {
+	public static final String PROTOCOL_AS1 = "as1";
+
+	public static final String PROTOCOL_AS2 = "as2";
+
 	private Map partners;
 
 	private Map partnerships;
 
+	/**
+	 * partnerships indexed by (protocol, sender id, receiver id). A new partnership is added to it, a new index replaces
+	 * it when a partnership or partner is replaced or a partnership removed, so lookups never see it partially built.
+	 */
+	private volatile ConcurrentMap<PartnershipKey, IPartnership> partnershipIndex =
+			new ConcurrentHashMap<PartnershipKey, IPartnership>();
+
 	public BasicPartnerStore()
 	{
 		super();
@@ -36,9 +51,13 @@ public class BasicPartnerStore implements IPartnerStore
 		return (IPartner)getPartnersMap().get(alias);
 	}
 
-	public void setPartner(String alias, IPartner partner)
+	public synchronized void setPartner(String alias, IPartner partner)
 	{
-		getPartnersMap().put(alias, partner);
+		if (getPartnersMap().put(alias, partner) != null)
+		{
+			// the IDs of the partner may have changed
+			reindex();
+		}
 	}
 
 	public String getAlias(IPartner partner)
@@ -61,9 +80,47 @@ public class BasicPartnerStore implements IPartnerStore
 		return (IPartnership)getPartnershipsMap().get(alias);
 	}
 
-	public void setPartnership(String alias, IPartnership partnership)
+	public synchronized void setPartnership(String alias, IPartnership partnership)
+	{
+		if (getPartnershipsMap().put(alias, partnership) != null)
+		{
+			reindex();
+		}
+		else
+		{
+			index(partnershipIndex, partnership);
+		}
+	}
+
+	/**
+	 * Finds a partnership by the partner IDs of a protocol without scanning the store. The IDs are those of the
+	 * partners when their partnership or partner was last set in the store.
+	 * 
+	 * @param protocol {@link #PROTOCOL_AS1} or {@link #PROTOCOL_AS2}
+	 * @param senderId the sender ID for that protocol
+	 * @param receiverId the receiver ID for that protocol
+	 * @return a matching partnership, or null if none
+	 */
+	public IPartnership getPartnership(String protocol, String senderId, String receiverId)
 	{
-		getPartnershipsMap().put(alias, partnership);
+		return partnershipIndex.get(new PartnershipKey(protocol, senderId, receiverId));
+	}
+
+	/**
+	 * Builds a new partnership index and publishes it. Called when the store changes, and to be called when the IDs of
+	 * a partner are changed in place after it has been set in the store.
+	 */
+	public synchronized void reindex()
+	{
+		ConcurrentMap<PartnershipKey, IPartnership> index = new ConcurrentHashMap<PartnershipKey, IPartnership>();
+
+		Iterator it = getPartnershipsMap().values().iterator();
+		while (it.hasNext())
+		{
+			index(index, (IPartnership)it.next());
+		}
+
+		partnershipIndex = index;
 	}
 
 	public String getAlias(IPartnership partnership)
@@ -71,9 +128,12 @@ public class BasicPartnerStore implements IPartnerStore
 		return (String)GeneralUtil.getKey(getPartnershipsMap(), partnership);
 	}
 
-	public void removePartnership(String alias)
+	public synchronized void removePartnership(String alias)
 	{
-		getPartnershipsMap().remove(alias);
+		if (getPartnershipsMap().remove(alias) != null)
+		{
+			reindex();
+		}
 	}
 
 	protected Map getPartnersMap()
@@ -93,4 +153,62 @@ public class BasicPartnerStore implements IPartnerStore
 		}
 		return partnerships;
 	}
+
+	private static void index(ConcurrentMap<PartnershipKey, IPartnership> index, IPartnership partnership)
+	{
+		IPartner sender = partnership.getSender();
+		IPartner receiver = partnership.getReceiver();
+
+		if ((sender == null) || (receiver == null))
+		{
+			return;
+		}
+
+		index(index, new PartnershipKey(PROTOCOL_AS1, sender.getAs1Id(), receiver.getAs1Id()), partnership);
+		index(index, new PartnershipKey(PROTOCOL_AS2, sender.getAs2Id(), receiver.getAs2Id()), partnership);
+	}
+
+	private static void index(ConcurrentMap<PartnershipKey, IPartnership> index, PartnershipKey key,
+			IPartnership partnership)
+	{
+		if ((key.senderId != null) && (key.receiverId != null))
+		{
+			index.putIfAbsent(key, partnership);
+		}
+	}
+
+	private static final class PartnershipKey
+	{
+		private final String protocol;
+
+		private final String senderId;
+
+		private final String receiverId;
+
+		PartnershipKey(String protocol, String senderId, String receiverId)
+		{
+			this.protocol = protocol;
+			this.senderId = senderId;
+			this.receiverId = receiverId;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof PartnershipKey))
+			{
+				return false;
+			}
+
+			PartnershipKey key = (PartnershipKey)obj;
+			return Objects.equals(protocol, key.protocol) && Objects.equals(senderId, key.senderId)
+					&& Objects.equals(receiverId, key.receiverId);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(protocol, senderId, receiverId);
+		}
+	}
 }
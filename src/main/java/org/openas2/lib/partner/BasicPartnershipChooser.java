@@ -21,8 +21,22 @@ public class BasicPartnershipChooser implements IPartnershipChooser
 
 	public IPartnership getPartnership(EDIINTMessage msg) throws PartnerException
 	{
-		// search all partnerships for a match
 		IPartnerStore store = getPartnerStore();
+		String protocol = getProtocol(msg);
+
+		if ((store instanceof BasicPartnerStore) && (protocol != null))
+		{
+			// the index is kept up to date by the store, a miss is final
+			IPartnership partnership = ((BasicPartnerStore)store).getPartnership(protocol, msg.getSenderID(),
+					msg.getReceiverID());
+			if ((partnership != null) && matches(partnership, msg))
+			{
+				return partnership;
+			}
+			throw new PartnerException("Partnership not found");
+		}
+
+		// search all partnerships for a match
 		String[] aliases = store.getPartnerships();
 		for (int i = 0; i < aliases.length; i++)
 		{
@@ -36,6 +50,19 @@ public class BasicPartnershipChooser implements IPartnershipChooser
 		throw new PartnerException("Partnership not found");
 	}
 
+	protected String getProtocol(EDIINTMessage msg)
+	{
+		if (msg instanceof AS1Message)
+		{
+			return BasicPartnerStore.PROTOCOL_AS1;
+		}
+		else if (msg instanceof AS2Message)
+		{
+			return BasicPartnerStore.PROTOCOL_AS2;
+		}
+		return null;
+	}
+
 	protected boolean matches(IPartnership partnership, EDIINTMessage msg)
 	{
 		// get the ID's from the message
@@ -6,6 +6,7 @@ import org.openas2.params.InvalidParameterException;
 import org.openas2.params.MessageParameters;
 import org.openas2.params.ParameterParser;
 import org.openas2.params.RandomParameters;
+import org.openas2.params.UniqueParameters;
 import org.openas2.partner.AS2Partnership;
 import org.openas2.partner.Partnership;
 
@@ -13,6 +14,10 @@ public class AS2Message extends BaseMessage implements Message
 {
 	public static final String PROTOCOL_AS2 = "as2";
 
+	/** Default format of the message ID, <code>$uid.unique$</code> keeps it unique whatever the message rate. */
+	public static final String DEFAULT_MESSAGEID_FORMAT =
+			"OPENAS2-$date.ddMMyyyyHHmmssZ$-$uid.unique$@$msg.sender.as2_id$_$msg.receiver.as2_id$";
+
 	public String getProtocol()
 	{
 		return PROTOCOL_AS2;
@@ -24,12 +29,13 @@ public class AS2Message extends BaseMessage implements Message
 				new CompositeParameters(false).
 						add("date", new DateParameters()).
 						add("msg", new MessageParameters(this)).
-						add("rand", new RandomParameters());
+						add("rand", new RandomParameters()).
+						add("uid", new UniqueParameters());
 
 		String idFormat = getPartnership().getAttribute(AS2Partnership.PA_MESSAGEID);
 		if (idFormat == null)
 		{
-			idFormat = "OPENAS2-$date.ddMMyyyyHHmmssZ$-$rand.1234$@$msg.sender.as2_id$_$msg.receiver.as2_id$";
+			idFormat = DEFAULT_MESSAGEID_FORMAT;
 		}
 		StringBuffer messageId = new StringBuffer();
 		messageId.append("<");
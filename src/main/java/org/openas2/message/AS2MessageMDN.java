@@ -1,12 +1,10 @@
 package org.openas2.message;
 
-import java.text.DecimalFormat;
-
 import org.openas2.partner.AS2Partnership;
 import org.openas2.partner.CustomIDPartnership;
 import org.openas2.partner.Partnership;
 import org.openas2.util.DateUtil;
-import org.openas2.util.RandomUtil;
+import org.openas2.util.MessageIdGenerator;
 
 public class AS2MessageMDN extends BaseMessageMDN
 {
@@ -40,9 +38,7 @@ public class AS2MessageMDN extends BaseMessageMDN
 		}
 		buf.append("<OPENAS2-").append(DateUtil.formatDate(dateFormat));
 
-		DecimalFormat randomFormatter = new DecimalFormat("0000");
-		buf.append("-").append(
-				randomFormatter.format(RandomUtil.getRandomGenerator().nextInt(10000)));
+		buf.append("-").append(MessageIdGenerator.nextUnique());
 
 		if (getMessage() != null)
 		{
@@ -13,4 +13,7 @@ public interface FileAttribute
 	public static final String MA_PENDINGFILE = "pendingfilename";
 
 	public static final String MA_STATUS = "status";
+
+	/** SHA-256 hash of the stored content, set when it is stored in a blob store. */
+	public static final String MA_CONTENT_HASH = "content_sha256";
 }
@@ -72,31 +72,33 @@ public class CompositeParameters extends ParameterParser
 
 	public String getParameter(String key) throws InvalidParameterException
 	{
-		StringTokenizer keyParts = new StringTokenizer(key, ".", false);
-
-		String parserID = keyParts.nextToken();
-		ParameterParser parser = (ParameterParser)getParameterParsers().get(parserID);
+		return getParameter(ParameterTemplate.splitKey(key), 0);
+	}
 
-		if (parser != null)
+	@Override
+	public String getParameter(String[] keyParts, int offset) throws InvalidParameterException
+	{
+		if (offset >= keyParts.length)
 		{
-			if (!keyParts.hasMoreTokens())
-			{
-				throw new InvalidParameterException("Invalid key format", this, key, null);
-			}
+			throw new InvalidParameterException("Invalid key format", this, "", null);
+		}
 
-			StringBuffer keyBuf = new StringBuffer(keyParts.nextToken());
+		ParameterParser parser = (ParameterParser)getParameterParsers().get(keyParts[offset]);
 
-			while (keyParts.hasMoreTokens())
+		if (parser != null)
+		{
+			if (offset + 1 >= keyParts.length)
 			{
-				keyBuf.append(".");
-				keyBuf.append(keyParts.nextToken());
+				throw new InvalidParameterException("Invalid key format", this,
+						ParameterTemplate.joinKey(keyParts, offset), null);
 			}
 
-			return parser.getParameter(keyBuf.toString());
+			return parser.getParameter(keyParts, offset + 1);
 		}
 		else if (!getIgnoreMissingParsers())
 		{
-			throw new InvalidParameterException("Invalid area in key", this, key, null);
+			throw new InvalidParameterException("Invalid area in key", this,
+					ParameterTemplate.joinKey(keyParts, offset), null);
 		}
 		else
 		{
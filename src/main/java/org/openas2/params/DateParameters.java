@@ -1,6 +1,6 @@
 package org.openas2.params;
 
-import org.openas2.util.DateUtil;
+import org.openas2.util.CachedDateFormat;
 
 public class DateParameters extends ParameterParser
 {
@@ -16,6 +16,6 @@ public class DateParameters extends ParameterParser
 			throw new InvalidParameterException("Invalid key", this, key, null);
 		}
 
-		return DateUtil.formatDate(key);
+		return CachedDateFormat.getInstance(key).format();
 	}
 }
@@ -79,26 +79,31 @@ public class MessageMDNParameters extends ParameterParser
 	}
 
 	public String getParameter(String key) throws InvalidParameterException
+	{
+		return getParameter(ParameterTemplate.splitKey(key), 0);
+	}
+
+	@Override
+	public String getParameter(String[] keyParts, int offset) throws InvalidParameterException
 	{
 		MessageMDN target = getTarget();
-		StringTokenizer keyParts = new StringTokenizer(key, ".", false);
+		int count = keyParts.length - offset;
 
-		if (keyParts.countTokens() > 2)
+		if (count > 2)
 		{
-			keyParts.nextToken();
+			String[] msgKey = { keyParts[offset + 1], keyParts[offset + 2] };
 
-			String msgKey = keyParts.nextToken() + "." + keyParts.nextToken();
-
-			return new MessageParameters(target.getMessage()).getParameter(msgKey);
+			return new MessageParameters(target.getMessage()).getParameter(msgKey, 0);
 		}
 
-		if (keyParts.countTokens() < 2)
+		if (count < 2)
 		{
-			throw new InvalidParameterException("Invalid key format", this, "key", key);
+			throw new InvalidParameterException("Invalid key format", this, "key",
+					ParameterTemplate.joinKey(keyParts, offset));
 		}
 
-		String area = keyParts.nextToken();
-		String areaID = keyParts.nextToken();
+		String area = keyParts[offset];
+		String areaID = keyParts[offset + 1];
 
 		if (area.equals(KEY_SENDER))
 		{
@@ -122,7 +127,8 @@ public class MessageMDNParameters extends ParameterParser
 		}
 		else
 		{
-			throw new InvalidParameterException("Invalid area in key", this, "key", key);
+			throw new InvalidParameterException("Invalid area in key", this, "key",
+					ParameterTemplate.joinKey(keyParts, offset));
 		}
 	}
 
@@ -69,15 +69,20 @@ public class MessageParameters extends ParameterParser
 
 	public String getParameter(String key) throws InvalidParameterException
 	{
-		StringTokenizer keyParts = new StringTokenizer(key, ".", false);
+		return getParameter(ParameterTemplate.splitKey(key), 0);
+	}
 
-		if (keyParts.countTokens() != 2)
+	@Override
+	public String getParameter(String[] keyParts, int offset) throws InvalidParameterException
+	{
+		if (keyParts.length - offset != 2)
 		{
-			throw new InvalidParameterException("Invalid key format", this, key, null);
+			throw new InvalidParameterException("Invalid key format", this,
+					ParameterTemplate.joinKey(keyParts, offset), null);
 		}
 
-		String area = keyParts.nextToken();
-		String areaID = keyParts.nextToken();
+		String area = keyParts[offset];
+		String areaID = keyParts[offset + 1];
 
 		if (area.equals(KEY_SENDER))
 		{
@@ -125,7 +130,8 @@ public class MessageParameters extends ParameterParser
 		}
 		else
 		{
-			throw new InvalidParameterException("Invalid area in key", this, key, null);
+			throw new InvalidParameterException("Invalid area in key", this,
+					ParameterTemplate.joinKey(keyParts, offset), null);
 		}
 	}
 
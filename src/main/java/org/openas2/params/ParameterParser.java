@@ -106,42 +106,21 @@ public abstract class ParameterParser
 	 */
 	public String format(String format) throws InvalidParameterException
 	{
-		StringBuffer result = new StringBuffer();
-
-		for (int next = 0; next < format.length(); ++next)
-		{
-			int prev = next;
-
-			// Find start of $xxx$ sequence.
-			next = format.indexOf('$', prev);
-			if (next == -1)
-			{
-				result.append(format.substring(prev, format.length()));
-				break;
-			}
-
-			// Save text before $xxx$ sequence, if there is any
-			if (next > prev)
-				result.append(format.substring(prev, next));
-
-			// Find end of $xxx$ sequence
-			prev = next + 1;
-			next = format.indexOf('$', prev);
-			if (next == -1)
-				throw new InvalidParameterException("Invalid key (missing closing $)");
-
-			// If we have just $$ then output $, else we have $xxx$, lookup xxx
-			if (next == prev)
-			{
-				result.append("$");
-			}
-			else
-			{
-				result.append(getParameter(format.substring(prev, next)));
-			}
-		}
+		return ParameterTemplate.compile(format).format(this);
+	}
 
-		return result.toString();
+	/**
+	 * Get a parameter from a key already split on '.', used by compiled templates to avoid splitting the key again.
+	 * The default implementation joins the parts and calls {@link #getParameter(String)}.
+	 * 
+	 * @param keyParts the parts of the key
+	 * @param offset index of the first part of the key for this parser
+	 * @return the parameter value
+	 * @throws InvalidParameterException the key is not supported by this parser
+	 */
+	public String getParameter(String[] keyParts, int offset) throws InvalidParameterException
+	{
+		return getParameter(ParameterTemplate.joinKey(keyParts, offset));
 	}
 
 	protected List parseKeys(String format)
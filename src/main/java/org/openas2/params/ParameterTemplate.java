@@ -0,0 +1,215 @@
+package org.openas2.params;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A format string like <code>$msg.sender.as2_id$-$date.yyyy$</code> parsed once into literal and lookup segments.
+ * Lookup keys are split on '.' at compile time, so rendering only walks the segments.
+ * <p>
+ * Compiled templates are immutable and cached by format, they can be shared between threads.
+ */
+public final class ParameterTemplate
+{
+	/** Formats come from the configuration and partnerships, the cache is only a guard against unbounded growth. */
+	private static final int MAX_CACHED_TEMPLATES = 1024;
+
+	private static final Map<String, ParameterTemplate> CACHE = new ConcurrentHashMap<String, ParameterTemplate>();
+
+	private final String format;
+
+	/** literal text when the matching key is null. */
+	private final String[] literals;
+
+	private final String[][] keys;
+
+	private final int sizeHint;
+
+	private ParameterTemplate(String format, List<String> literals, List<String[]> keys)
+	{
+		this.format = format;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.keys = keys.toArray(new String[keys.size()][]);
+
+		int size = 0;
+		for (int i = 0; i < this.literals.length; i++)
+		{
+			size += (this.literals[i] != null) ? this.literals[i].length() : 16;
+		}
+		this.sizeHint = size;
+	}
+
+	/**
+	 * Returns the compiled template of a format string.
+	 * 
+	 * @param format the format string, <code>$$</code> stands for a single <code>$</code>
+	 * @return the compiled template
+	 * @throws InvalidParameterException the format has an unclosed <code>$</code>
+	 */
+	public static ParameterTemplate compile(String format) throws InvalidParameterException
+	{
+		ParameterTemplate template = CACHE.get(format);
+
+		if (template == null)
+		{
+			template = parse(format);
+
+			if (CACHE.size() < MAX_CACHED_TEMPLATES)
+			{
+				CACHE.put(format, template);
+			}
+		}
+
+		return template;
+	}
+
+	/**
+	 * Fill in the template with information from a ParameterParser.
+	 * 
+	 * @param parser the place to get the parsed info
+	 * @return the filled in format
+	 * @throws InvalidParameterException a key is not supported by the parser
+	 */
+	public String format(ParameterParser parser) throws InvalidParameterException
+	{
+		if (keys.length == 1 && literals[0] != null)
+		{
+			return literals[0];
+		}
+
+		StringBuilder result = new StringBuilder(sizeHint);
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] == null)
+			{
+				result.append(literals[i]);
+			}
+			else
+			{
+				result.append(parser.getParameter(keys[i], 0));
+			}
+		}
+
+		return result.toString();
+	}
+
+	public String getFormat()
+	{
+		return format;
+	}
+
+	/**
+	 * Splits a key on '.' the way a <code>StringTokenizer</code> does, empty parts are skipped.
+	 * 
+	 * @param key the key, like <code>msg.sender.as2_id</code>
+	 * @return the parts of the key
+	 */
+	public static String[] splitKey(String key)
+	{
+		List<String> parts = new ArrayList<String>(4);
+		int start = 0;
+
+		while (start <= key.length())
+		{
+			int end = key.indexOf('.', start);
+			if (end == -1)
+			{
+				end = key.length();
+			}
+			if (end > start)
+			{
+				parts.add(key.substring(start, end));
+			}
+			start = end + 1;
+		}
+
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	/**
+	 * Joins the parts of a key from an offset with '.'.
+	 * 
+	 * @param keyParts the parts of the key
+	 * @param offset index of the first part to join
+	 * @return the joined key
+	 */
+	public static String joinKey(String[] keyParts, int offset)
+	{
+		if (keyParts.length - offset == 1)
+		{
+			return keyParts[offset];
+		}
+
+		StringBuilder key = new StringBuilder();
+
+		for (int i = offset; i < keyParts.length; i++)
+		{
+			if (i > offset)
+			{
+				key.append('.');
+			}
+			key.append(keyParts[i]);
+		}
+
+		return key.toString();
+	}
+
+	private static ParameterTemplate parse(String format) throws InvalidParameterException
+	{
+		List<String> literals = new ArrayList<String>();
+		List<String[]> keys = new ArrayList<String[]>();
+		StringBuilder literal = new StringBuilder();
+
+		for (int next = 0; next < format.length(); ++next)
+		{
+			int prev = next;
+
+			// Find start of $xxx$ sequence.
+			next = format.indexOf('$', prev);
+			if (next == -1)
+			{
+				literal.append(format, prev, format.length());
+				break;
+			}
+
+			// Save text before $xxx$ sequence, if there is any
+			literal.append(format, prev, next);
+
+			// Find end of $xxx$ sequence
+			prev = next + 1;
+			next = format.indexOf('$', prev);
+			if (next == -1)
+			{
+				throw new InvalidParameterException("Invalid key (missing closing $)");
+			}
+
+			// If we have just $$ then output $, else we have $xxx$, lookup xxx
+			if (next == prev)
+			{
+				literal.append('$');
+			}
+			else
+			{
+				if (literal.length() > 0)
+				{
+					literals.add(literal.toString());
+					keys.add(null);
+					literal.setLength(0);
+				}
+				literals.add(null);
+				keys.add(splitKey(format.substring(prev, next)));
+			}
+		}
+
+		if (literal.length() > 0 || literals.isEmpty())
+		{
+			literals.add(literal.toString());
+			keys.add(null);
+		}
+
+		return new ParameterTemplate(format, literals, keys);
+	}
+}
@@ -1,8 +1,6 @@
 package org.openas2.params;
 
-import java.text.DecimalFormat;
-
-import org.openas2.util.RandomUtil;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class RandomParameters extends ParameterParser
 {
@@ -21,16 +19,22 @@ public class RandomParameters extends ParameterParser
 		}
 
 		int wanted = key.length();
-		String fmt = "";
-		int max = 1;
+		long max = 1;
 
-		while (wanted-- > 0)
+		for (int i = 0; i < wanted && max < Long.MAX_VALUE / 10; i++)
 		{
-			fmt += "0";
 			max *= 10;
 		}
 
-		DecimalFormat randomFormatter = new DecimalFormat(fmt);
-		return randomFormatter.format(RandomUtil.getRandomGenerator().nextInt(max));
+		// thread local generator, no contention between the threads generating message IDs
+		String value = Long.toString(ThreadLocalRandom.current().nextLong(max));
+		StringBuilder buf = new StringBuilder(wanted);
+
+		for (int i = value.length(); i < wanted; i++)
+		{
+			buf.append('0');
+		}
+
+		return buf.append(value).toString();
 	}
 }
@@ -0,0 +1,35 @@
+package org.openas2.params;
+
+import org.openas2.util.MessageIdGenerator;
+
+/**
+ * Unique values for message IDs: <code>$uid.unique$</code> is unique across nodes, <code>$uid.node$</code> is the
+ * node ID.
+ */
+public class UniqueParameters extends ParameterParser
+{
+	public static final String KEY_UNIQUE = "unique";
+
+	public static final String KEY_NODE = "node";
+
+	@Override
+	public void setParameter(String key, String value) throws InvalidParameterException
+	{
+		throw new InvalidParameterException("Set not supported", this, key, value);
+	}
+
+	@Override
+	public String getParameter(String key) throws InvalidParameterException
+	{
+		if (KEY_UNIQUE.equals(key))
+		{
+			return MessageIdGenerator.nextUnique();
+		}
+		else if (KEY_NODE.equals(key))
+		{
+			return MessageIdGenerator.getNodeId();
+		}
+
+		throw new InvalidParameterException("Invalid key", this, key, null);
+	}
+}
@@ -23,6 +23,18 @@ public class Partnership implements Serializable
 	public static final String PA_CONTENT_TRANSFER_ENCODING = "content_transfer_encoding"; // optional content transer
 																														// enc value
 
+	public static final String PA_RESEND_DELAY = "resend_delay"; // Seconds before the first resend, doubled each time
+
+	public static final String PA_RESEND_MAX_DELAY = "resend_max_delay"; // Seconds the resend delay is capped at
+
+	public static final String PA_RESEND_MAX_ATTEMPTS = "resend_max_attempts"; // Resends before the message fails
+
+	public static final String PA_RESEND_MAX_AGE = "resend_max_age"; // Minutes after the first failure the message fails
+
+	public static final String PA_SEND_PRIORITY = "send_priority"; // Outbox files of higher priorities are sent first
+
+	public static final String PA_SEND_WEIGHT = "send_weight"; // Share of the outbox sends among the partnerships
+
 	private Map attributes;
 
 	private Map receiverIDs;
@@ -1,18 +1,23 @@
 package org.openas2.partner;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.text.DecimalFormat;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -23,6 +28,7 @@ import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.WrappedException;
 import org.openas2.params.InvalidParameterException;
+import org.openas2.util.DateUtil;
 import org.openas2.util.FileMonitor;
 import org.openas2.util.FileMonitorListener;
 import org.openas2.util.XMLUtil;
@@ -49,6 +55,15 @@ public class XMLPartnershipFactory extends BasePartnershipFactory
 
 	public static final String PARAM_INTERVAL = "interval";
 
+	/** Maximum number of timestamped backups kept when the partnerships are stored. */
+	public static final String PARAM_BACKUPS = "backups";
+
+	public static final int DEFAULT_BACKUPS = 10;
+
+	private static final String BACKUP_DATE_FORMAT = "yyyyMMddHHmmssSSS";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
 	/** Logger for the class. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(XMLPartnershipFactory.class);
 
@@ -81,7 +96,7 @@ public class XMLPartnershipFactory extends BasePartnershipFactory
 
 			int interval = getParameterInt(PARAM_INTERVAL, true);
 			File file = new File(getFilename());
-			fileMonitor = new FileMonitor(file, interval);
+			fileMonitor = new FileMonitor(file, interval, getSession().getScheduler());
 			fileMonitor.addListener(this);
 		}
 
@@ -271,78 +286,188 @@ public class XMLPartnershipFactory extends BasePartnershipFactory
 	public void storePartnership()
 			throws OpenAS2Exception
 	{
-		String fn = getFilename();
+		File file = new File(getFilename()).getAbsoluteFile();
+		File dir = file.getParentFile();
+		File tmpFile = null;
 
-		DecimalFormat df = new DecimalFormat("0000000");
-		long l = 0;
-		File f = null;
-		while (true)
+		try
 		{
-			f = new File(fn + '.' + df.format(l));
-			if (!f.exists())
+			// write the new store next to the live one so that the final rename stays on the same file system
+			tmpFile = File.createTempFile(file.getName() + ".", TEMP_SUFFIX, dir);
+
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+
+			try
 			{
-				break;
+				writePartnerships(out);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if (file.exists())
+			{
+				backupPartnership(file);
+			}
+
+			// swap the new store in, the file monitor never sees a missing or partially written file
+			try
+			{
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException amnse)
+			{
+				LOGGER.warn("atomic move not supported for {}, replacing it non atomically", file);
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
-			l++;
+
+			tmpFile = null;
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+		finally
+		{
+			if ((tmpFile != null) && !tmpFile.delete())
+			{
+				LOGGER.warn("unable to delete temporary partnership file {}", tmpFile);
+			}
+		}
+	}
+
+	/**
+	 * Copies the live partnership file to a timestamped backup, then removes the oldest backups so that no more than
+	 * {@link #PARAM_BACKUPS} of them are kept.
+	 * 
+	 * @param file the live partnership file
+	 * @throws IOException if the backup can not be written
+	 * @throws OpenAS2Exception if the backups parameter is invalid
+	 */
+	protected void backupPartnership(File file) throws IOException, OpenAS2Exception
+	{
+		int maxBackups = getParameterInt(PARAM_BACKUPS, DEFAULT_BACKUPS);
+
+		if (maxBackups <= 0)
+		{
+			return;
 		}
 
-		LOGGER.info("backing up {} to {}", fn, ((f == null) ? "" : f.getName()));
+		String backupName = file.getName() + '.' + DateUtil.formatDate(BACKUP_DATE_FORMAT);
+		Path backup = file.toPath().resolveSibling(backupName);
+
+		LOGGER.info("backing up {} to {}", file, backupName);
 
-		File fr = new File(fn);
-		fr.renameTo(f);
+		Files.copy(file.toPath(), backup, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+
+		// timestamped names sort chronologically, only the bounded set of backups is listed
+		List<Path> backups = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(backup.getParent(), file.getName() + ".[0-9]*");
 
 		try
 		{
-			PrintWriter pw = new PrintWriter(new FileOutputStream(fn));
-
-			Map partner = partners;
-			pw.println("<partnerships>");
-			Iterator partnerIt = partner.entrySet().iterator();
-			while (partnerIt.hasNext())
+			for (Path path : stream)
 			{
-				Map.Entry ptrnData = (Map.Entry)partnerIt.next();
-				HashMap partnerMap = (HashMap)ptrnData.getValue();
-				pw.print("  <partner ");
-				Iterator attrIt = partnerMap.entrySet().iterator();
-				while (attrIt.hasNext())
+				if (path.getFileName().toString().length() == backupName.length())
 				{
-					Map.Entry attribute = (Map.Entry)attrIt.next();
-					pw.print(attribute.getKey() + "=\"" + attribute.getValue() + "\"");
-					if (attrIt.hasNext())
-					{
-						pw.print("\n           ");
-					}
+					backups.add(path);
 				}
-				pw.println("/>");
 			}
-			List partnerShips = getPartnerships();
-			ListIterator partnerLIt = (ListIterator)partnerShips.listIterator();
-			while (partnerLIt.hasNext())
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		Collections.sort(backups);
+
+		for (int i = 0; i < backups.size() - maxBackups; i++)
+		{
+			Files.deleteIfExists(backups.get(i));
+		}
+	}
+
+	protected void writePartnerships(Writer out) throws IOException
+	{
+		out.write("<partnerships>\n");
+
+		Iterator partnerIt = getPartners().entrySet().iterator();
+		while (partnerIt.hasNext())
+		{
+			Map.Entry ptrnData = (Map.Entry)partnerIt.next();
+			Map partnerMap = (Map)ptrnData.getValue();
+			out.write("  <partner ");
+			Iterator attrIt = partnerMap.entrySet().iterator();
+			while (attrIt.hasNext())
 			{
-				Partnership partnership = (Partnership)partnerLIt.next();
-				pw.println("  <partnership name=\"" + partnership.getName() + "\">");
-				pw.println("    <sender name=\"" + partnership.getSenderIDs().get("name") + "\"/>");
-				pw.println("    <receiver name=\"" + partnership.getReceiverIDs().get("name") + "\"/>");
-				Map partnershipMap = partnership.getAttributes();
-
-				Iterator partnershipIt = partnershipMap.entrySet().iterator();
-				while (partnershipIt.hasNext())
+				Map.Entry attribute = (Map.Entry)attrIt.next();
+				writeAttribute(out, attribute.getKey(), attribute.getValue());
+				if (attrIt.hasNext())
 				{
-					Map.Entry partnershipData = (Map.Entry)partnershipIt.next();
-					pw.println("    <attribute name=\"" + partnershipData.getKey() + "\" value=\""
-							+ partnershipData.getValue() + "\"/>");
-
+					out.write("\n           ");
 				}
-				pw.println("  </partnership>");
 			}
-			pw.println("</partnerships>");
-			pw.flush();
-			pw.close();
+			out.write("/>\n");
 		}
-		catch (FileNotFoundException e)
+
+		Iterator<Partnership> partnershipIt = getPartnerships().iterator();
+		while (partnershipIt.hasNext())
 		{
-			throw new WrappedException(e);
+			Partnership partnership = partnershipIt.next();
+			out.write("  <partnership ");
+			writeAttribute(out, "name", partnership.getName());
+			out.write(">\n    <sender ");
+			writeAttribute(out, "name", partnership.getSenderIDs().get("name"));
+			out.write("/>\n    <receiver ");
+			writeAttribute(out, "name", partnership.getReceiverIDs().get("name"));
+			out.write("/>\n");
+
+			Iterator attributeIt = partnership.getAttributes().entrySet().iterator();
+			while (attributeIt.hasNext())
+			{
+				Map.Entry partnershipData = (Map.Entry)attributeIt.next();
+				out.write("    <attribute ");
+				writeAttribute(out, "name", partnershipData.getKey());
+				out.write(" ");
+				writeAttribute(out, "value", partnershipData.getValue());
+				out.write("/>\n");
+			}
+			out.write("  </partnership>\n");
 		}
+		out.write("</partnerships>\n");
+	}
+
+	private void writeAttribute(Writer out, Object name, Object value) throws IOException
+	{
+		out.write(String.valueOf(name));
+		out.write("=\"");
+
+		String text = String.valueOf(value);
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+				case '&':
+					out.write("&amp;");
+					break;
+				case '<':
+					out.write("&lt;");
+					break;
+				case '>':
+					out.write("&gt;");
+					break;
+				case '"':
+					out.write("&quot;");
+					break;
+				default:
+					out.write(c);
+			}
+		}
+
+		out.write('"');
 	}
 
 	private void handleEventModified()
@@ -3,10 +3,47 @@ package org.openas2.processor.receiver;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.activation.DataHandler;
 import javax.mail.MessagingException;
@@ -23,7 +60,8 @@ import org.openas2.params.MessageParameters;
 import org.openas2.params.ParameterParser;
 import org.openas2.partner.Partnership;
 import org.openas2.processor.sender.SenderModule;
-import org.openas2.util.ByteArrayDataSource;
+import org.openas2.util.FileBackedDataSource;
+import org.openas2.util.FileTransfer;
 import org.openas2.util.IOUtilOld;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +75,53 @@ public abstract class DirectoryPollingModule extends PollingModule
     public static final String PARAM_DELIMITERS = "delimiters";
     public static final String PARAM_DEFAULTS = "defaults";
     public static final String PARAM_MIMETYPE = "mimetype";   
+    /** "true" to pick up the files as soon as they are written, the outbox is then listed every interval as a safety net. */
+    public static final String PARAM_WATCH = "watch";
+    /** Milliseconds a file must be left unchanged before it is sent. */
+    public static final String PARAM_QUIET_PERIOD = "quietperiod";
+    public static final int DEFAULT_WATCH_QUIET_PERIOD = 1000;
+    /** Threads of the module sending the files, 1 by default, the threads of the scheduler only list the outbox. */
+    public static final String PARAM_THREADS = "threads";
+    /** Files being sent or waiting for a thread, twice the threads by default. */
+    public static final String PARAM_MAX_IN_FLIGHT = "maxinflight";
+    /** Regular expression of the names of the files being written, e.g. temporary or dot files, which are not sent. */
+    public static final String PARAM_IGNORE_PATTERN = "ignorepattern";
+    /** Directory the files are moved to, atomically, before they are sent. Private to the module and the server. */
+    public static final String PARAM_PROCESSING_DIRECTORY = "processingdir";
+    /** Priorities of the files by name, "regex=priority" separated by ';', see {@link SendScheduler}. */
+    public static final String PARAM_PRIORITY_PATTERNS = "prioritypatterns";
+    /** "true" to send the files of the subdirectories of the outbox too. */
+    public static final String PARAM_RECURSIVE = "recursive";
+    /** Tokens given by the path of the subdirectory of a file, like {@link #PARAM_FORMAT} for its name. */
+    public static final String PARAM_DIRECTORY_FORMAT = "dirformat";
+    /** "true" to hard link the file sent to the pending folder rather than copy it. */
+    public static final String PARAM_LINK_PENDING = "linkpending";
+    /** Milliseconds a directory is listed again after it changed, for the file systems with a coarse modification time. */
+    private static final long DIRECTORY_TIME_RESOLUTION = 2000;
     /** Logger for the class. */
     private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryPollingModule.class);
     private Map trackedFiles;
+    private long quietPeriod;
+    private WatchService watchService;
+    private Thread watcher;
+    /** Files created or modified in watch mode, with the time of their last change. */
+    private final Map<String, Long> changedFiles = new ConcurrentHashMap<String, Long>();
+    /** Files queued or being sent, so a file is not sent twice while it is still in the outbox. */
+    private final Set<String> claimedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ExecutorService executor;
+    /** Set while a caller sends the queued files, when the module is not started. */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private Semaphore inFlight;
+    private Pattern ignorePattern;
+    private final SendScheduler scheduler = new SendScheduler();
+    private final Map<Pattern, Integer> priorityPatterns = new LinkedHashMap<Pattern, Integer>();
+    private boolean recursive;
+    /** Directories of the outbox tree not listed, the error, sent and processing directories. */
+    private final Set<Path> excludedDirectories = new HashSet<Path>();
+    /** Directories of the outbox tree by path, as last listed. */
+    private final Map<String, ScannedDirectory> scannedDirectories = new HashMap<String, ScannedDirectory>();
+    /** Directories registered with the watch service. */
+    private final Set<String> watchedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 
 
@@ -49,12 +131,146 @@ public abstract class DirectoryPollingModule extends PollingModule
         super.init(session, options);
         getParameter(PARAM_OUTBOX_DIRECTORY, true);
         getParameter(PARAM_ERROR_DIRECTORY, true);
+
+        String ignore = getParameter(PARAM_IGNORE_PATTERN, false);
+        if (ignore != null)
+        {
+        	try
+        	{
+        		ignorePattern = Pattern.compile(ignore);
+        	}
+        	catch (PatternSyntaxException pse)
+        	{
+        		throw new InvalidParameterException(pse.getMessage(), this, PARAM_IGNORE_PATTERN, ignore);
+        	}
+        }
+
+        String patterns = getParameter(PARAM_PRIORITY_PATTERNS, false);
+        if (patterns != null)
+        {
+        	for (StringTokenizer tokens = new StringTokenizer(patterns, ";"); tokens.hasMoreTokens();)
+        	{
+        		String token = tokens.nextToken().trim();
+        		int separator = token.lastIndexOf('=');
+        		try
+        		{
+        			priorityPatterns.put(Pattern.compile(token.substring(0, separator)),
+        					Integer.valueOf(token.substring(separator + 1).trim()));
+        		}
+        		catch (RuntimeException re)
+        		{
+        			// no separator, invalid expression or priority
+        			throw new InvalidParameterException("Invalid priority pattern " + token, this,
+        					PARAM_PRIORITY_PATTERNS, patterns);
+        		}
+        	}
+        }
+
+        recursive = Boolean.parseBoolean(getParameter(PARAM_RECURSIVE, "false"));
+        for (String key : new String[] { PARAM_ERROR_DIRECTORY, PARAM_SENT_DIRECTORY, PARAM_PROCESSING_DIRECTORY })
+        {
+        	String directory = getParameter(key, false);
+        	if (directory != null)
+        	{
+        		excludedDirectories.add(toPath(new File(directory)));
+        	}
+        }
+
+        String processingDir = getParameter(PARAM_PROCESSING_DIRECTORY, false);
+        if (processingDir != null)
+        {
+        	// the files are claimed by a link or an atomic rename, neither crosses file systems
+        	try
+        	{
+        		Path outbox = IOUtilOld.getDirectoryFile(getParameter(PARAM_OUTBOX_DIRECTORY, true)).toPath();
+        		Path processing = IOUtilOld.getDirectoryFile(processingDir).toPath();
+        		if (!Files.getFileStore(processing).equals(Files.getFileStore(outbox)))
+        		{
+        			throw new InvalidParameterException("The processing directory must be on the file system of the "
+        					+ "outbox", this, PARAM_PROCESSING_DIRECTORY, processingDir);
+        		}
+        	}
+        	catch (IOException ioe)
+        	{
+        		throw new WrappedException(ioe);
+        	}
+        }
+
+        // the producers rename the files once written, they are sent at once
+        quietPeriod = getParameterInt(PARAM_QUIET_PERIOD, (isWatching() && ignorePattern == null)
+        		? DEFAULT_WATCH_QUIET_PERIOD : 0);
     }
 
+	@Override
+	public void doStart() throws OpenAS2Exception
+	{
+		recoverClaimedFiles();
+
+		synchronized (scannedDirectories)
+		{
+			// the whole tree is listed again
+			scannedDirectories.clear();
+		}
+
+		// the files are never sent on the shared threads of the scheduler, a slow partner would hold up the polling of
+		// the other modules
+		int threads = Math.max(1, getParameterInt(PARAM_THREADS, 1));
+		final String name = getName();
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		inFlight = new Semaphore(getParameterInt(PARAM_MAX_IN_FLIGHT, 2 * threads));
+
+		if (isWatching())
+		{
+			startWatching();
+		}
+
+		super.doStart();
+	}
+
+	@Override
+	public void doStop() throws OpenAS2Exception
+	{
+		super.doStop();
+
+		stopWatching();
+
+		if (executor != null)
+		{
+			// the files being sent are finished
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	@Override
+	protected String getTaskName()
+	{
+		return getName() + " " + getParameter(PARAM_OUTBOX_DIRECTORY, "");
+	}
+
 	public void poll()
 	{
 		try
 		{
+			if (watchService != null)
+			{
+				// safety rescan, for changes missed by the watch service
+				rescanDirectory(getParameter(PARAM_OUTBOX_DIRECTORY, true));
+				processChangedFiles();
+				return;
+			}
+
             // scan the directory for new files
             scanDirectory(getParameter(PARAM_OUTBOX_DIRECTORY, true));
 
@@ -77,6 +293,18 @@ public abstract class DirectoryPollingModule extends PollingModule
 	{
         File dir = IOUtilOld.getDirectoryFile(directory);
 
+        if (recursive)
+        {
+        	for (File file : listChangedFiles(dir))
+        	{
+        		if (checkFile(file))
+        		{
+        			trackFile(file);
+        		}
+        	}
+        	return;
+        }
+
         // get a list of entries in the directory
         File[] files = dir.listFiles();
 		if (files == null)
@@ -103,6 +331,12 @@ public abstract class DirectoryPollingModule extends PollingModule
 
 	protected boolean checkFile(File file)
 	{
+		if (ignorePattern != null && ignorePattern.matcher(file.getName()).matches())
+		{
+			// still being written
+			return false;
+		}
+
 		if (file.exists() && file.isFile())
 		{
 			try
@@ -125,7 +359,7 @@ public abstract class DirectoryPollingModule extends PollingModule
 	{
         Map trackedFiles = getTrackedFiles();
         String filePath = file.getAbsolutePath();
-		if (trackedFiles.get(filePath) == null)
+		if (trackedFiles.get(filePath) == null && !claimedFiles.contains(filePath))
 		{
             trackedFiles.put(filePath, new Long(file.length()));
         }
@@ -158,18 +392,20 @@ public abstract class DirectoryPollingModule extends PollingModule
 				{
                     trackedFiles.put(fileEntry.getKey(), new Long(newLength));
 				}
+				else if ((quietPeriod > 0) && (System.currentTimeMillis() - file.lastModified() < quietPeriod))
+				{
+					// modified too recently, it may still be written
+				}
 				else
 				{
                     // if the file length has stayed the same, process the file and stop tracking it
-					try
-					{
-                        processFile(file);
-                    } finally {
-                        trackedFiles.remove(fileEntry.getKey());
-                    }
+					submitFile(file);
+                    trackedFiles.remove(fileEntry.getKey());
                 }
             }
         }
+
+		sendScheduledFiles();
     }
 
 	protected void processFile(File file) throws OpenAS2Exception
@@ -214,10 +450,20 @@ public abstract class DirectoryPollingModule extends PollingModule
 					pendingFile = new File(msg.getPartnership().getAttribute(
 							FileAttribute.MA_PENDING), msg
 							.getAttribute(FileAttribute.MA_PENDINGFILE));
-					IOUtilOld.copyFile(file, pendingFile);
-
-					LOGGER.info("copied {} to pending folder : {}{}", file.getAbsolutePath(), 
-						pendingFile.getAbsolutePath(), msg.getLoggingText());
+					// a hard link keeps a single copy of the data, but the sent file and the pending file are then
+					// the same file: editing one in place changes the other
+					if (Boolean.parseBoolean(getParameter(PARAM_LINK_PENDING, "false")))
+					{
+						FileTransfer.link(file, pendingFile);
+						LOGGER.info("linked {} to pending folder : {}{}", file.getAbsolutePath(), 
+							pendingFile.getAbsolutePath(), msg.getLoggingText());
+					}
+					else
+					{
+						IOUtilOld.copyFile(file, pendingFile);
+						LOGGER.info("copied {} to pending folder : {}{}", file.getAbsolutePath(), 
+							pendingFile.getAbsolutePath(), msg.getLoggingText());
+					}
 				}
 				catch (IOException iose)
 				{
@@ -270,9 +516,759 @@ public abstract class DirectoryPollingModule extends PollingModule
         }
     }
 
+	protected boolean isWatching() throws InvalidParameterException
+	{
+		return Boolean.parseBoolean(getParameter(PARAM_WATCH, "false"));
+	}
+
+	private void startWatching() throws OpenAS2Exception
+	{
+		try
+		{
+			final Path dir = IOUtilOld.getDirectoryFile(getParameter(PARAM_OUTBOX_DIRECTORY, true)).toPath();
+			watchService = FileSystems.getDefault().newWatchService();
+			watchDirectory(dir.toFile());
+
+			// the files already in the outbox
+			rescanDirectory(dir.toString());
+
+			final WatchService service = watchService;
+			watcher = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						watch(service);
+					}
+					catch (InterruptedException ie)
+					{
+						// stopped
+					}
+					catch (Exception e)
+					{
+						// the safety rescan still picks up the files
+						LOGGER.error("watching " + dir + " failed", e);
+					}
+				}
+			}, getName() + "-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+	}
+
+	private void stopWatching() throws OpenAS2Exception
+	{
+		if (watcher != null)
+		{
+			watcher.interrupt();
+			watcher = null;
+		}
+
+		if (watchService != null)
+		{
+			try
+			{
+				watchService.close();
+			}
+			catch (IOException ioe)
+			{
+				throw new WrappedException(ioe);
+			}
+			watchService = null;
+		}
+
+		watchedDirectories.clear();
+	}
+
+	/**
+	 * Registers a directory with the watch service, in watch mode.
+	 */
+	private void watchDirectory(File dir) throws IOException
+	{
+		WatchService service = watchService;
+		if ((service != null) && watchedDirectories.add(dir.getAbsolutePath()))
+		{
+			dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		}
+	}
+
+	private void watch(WatchService service) throws Exception
+	{
+		String outbox = getParameter(PARAM_OUTBOX_DIRECTORY, true);
+
+		while (!Thread.currentThread().isInterrupted())
+		{
+			long next = getNextQuietTime();
+			WatchKey key;
+
+			if (next == Long.MAX_VALUE)
+			{
+				key = service.take();
+			}
+			else
+			{
+				key = service.poll(Math.max(next - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS);
+			}
+
+			if (key != null)
+			{
+				Path dir = (Path)key.watchable();
+				long now = System.currentTimeMillis();
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						rescanDirectory(outbox);
+					}
+					else
+					{
+						File file = dir.resolve((Path)event.context()).toFile();
+						String path = file.getAbsolutePath();
+						if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+						{
+							changedFiles.remove(path);
+						}
+						else if (recursive && file.isDirectory())
+						{
+							rescanSubdirectory(file);
+						}
+						else
+						{
+							changedFiles.put(path, now);
+						}
+					}
+				}
+				if (!key.reset())
+				{
+					// the directory was removed
+					watchedDirectories.remove(dir.toFile().getAbsolutePath());
+				}
+			}
+
+			try
+			{
+				processChangedFiles();
+			}
+			catch (OpenAS2Exception oae)
+			{
+				oae.terminate();
+			}
+		}
+	}
+
+	/**
+	 * @return the time the next changed file will have been left unchanged for the quiet period, Long.MAX_VALUE if
+	 *         there is none
+	 */
+	private long getNextQuietTime()
+	{
+		long next = Long.MAX_VALUE;
+		for (Long changed : changedFiles.values())
+		{
+			next = Math.min(next, changed + quietPeriod);
+		}
+
+		return next;
+	}
+
+	/**
+	 * Lists the outbox in watch mode, for the files not seen changing.
+	 */
+	protected void rescanDirectory(String directory) throws IOException
+	{
+		if (recursive)
+		{
+			for (File file : listChangedFiles(IOUtilOld.getDirectoryFile(directory)))
+			{
+				String filePath = file.getAbsolutePath();
+				if (!changedFiles.containsKey(filePath) && file.isFile())
+				{
+					changedFiles.put(filePath, file.lastModified());
+				}
+			}
+			return;
+		}
+
+		DirectoryStream<Path> files = Files.newDirectoryStream(IOUtilOld.getDirectoryFile(directory).toPath());
+		try
+		{
+			for (Path path : files)
+			{
+				File file = path.toFile();
+				String filePath = file.getAbsolutePath();
+				if (!changedFiles.containsKey(filePath) && file.isFile())
+				{
+					changedFiles.put(filePath, file.lastModified());
+				}
+			}
+		}
+		finally
+		{
+			files.close();
+		}
+	}
+
+	/**
+	 * Watches and lists a subdirectory created or changed in the outbox tree, in watch mode.
+	 */
+	private void rescanSubdirectory(File dir)
+	{
+		if (isExcluded(dir))
+		{
+			return;
+		}
+
+		try
+		{
+			for (File file : listChangedFiles(dir))
+			{
+				String filePath = file.getAbsolutePath();
+				if (!changedFiles.containsKey(filePath) && file.isFile())
+				{
+					changedFiles.put(filePath, file.lastModified());
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			// removed since, or found again by the safety rescan
+			LOGGER.warn("listing " + dir + " failed", ioe);
+		}
+	}
+
+	/**
+	 * Lists the files of the directories of a tree changed since they were last listed. Adding, removing or renaming a
+	 * file changes the modification time of its directory, so an unchanged directory is not listed again, unless it
+	 * had files: they may not have been sent yet. A poll of an outbox tree of many partners then lists the directories
+	 * with files, each other directory costs a single status.
+	 * 
+	 * @param root the top directory
+	 * @return the files of the changed directories
+	 * @throws IOException the top directory could not be listed
+	 */
+	private List<File> listChangedFiles(File root) throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		long now = System.currentTimeMillis();
+
+		synchronized (scannedDirectories)
+		{
+			ArrayDeque<File> dirs = new ArrayDeque<File>();
+			dirs.add(root);
+
+			while (!dirs.isEmpty())
+			{
+				File dir = dirs.poll();
+				String path = dir.getAbsolutePath();
+				long modified = dir.lastModified();
+				ScannedDirectory scanned = scannedDirectories.get(path);
+
+				if ((scanned == null) || scanned.hasFiles || (scanned.modified != modified)
+						|| (now - modified < DIRECTORY_TIME_RESOLUTION))
+				{
+					// registered before it is listed, for the files added meanwhile
+					watchDirectory(dir);
+
+					File[] entries = dir.listFiles();
+					if (entries == null)
+					{
+						if (dir == root)
+						{
+							throw new IOException("Error getting list of files in directory " + path);
+						}
+						// removed
+						removeScannedDirectories(path);
+						continue;
+					}
+
+					ScannedDirectory listed = new ScannedDirectory(modified);
+					for (File entry : entries)
+					{
+						if (!entry.isDirectory())
+						{
+							files.add(entry);
+							listed.hasFiles = true;
+						}
+						else if (!isExcluded(entry))
+						{
+							listed.subdirectories.add(entry);
+						}
+					}
+
+					if (scanned != null)
+					{
+						for (File subdirectory : scanned.subdirectories)
+						{
+							if (!listed.subdirectories.contains(subdirectory))
+							{
+								removeScannedDirectories(subdirectory.getAbsolutePath());
+							}
+						}
+					}
+
+					scannedDirectories.put(path, listed);
+					scanned = listed;
+				}
+
+				dirs.addAll(scanned.subdirectories);
+			}
+		}
+
+		return files;
+	}
+
+	private void removeScannedDirectories(String path)
+	{
+		String prefix = path + File.separator;
+		for (Iterator<String> it = scannedDirectories.keySet().iterator(); it.hasNext();)
+		{
+			String scanned = it.next();
+			if (scanned.equals(path) || scanned.startsWith(prefix))
+			{
+				it.remove();
+			}
+		}
+	}
+
+	private boolean isExcluded(File dir)
+	{
+		return excludedDirectories.contains(toPath(dir))
+				|| ((ignorePattern != null) && ignorePattern.matcher(dir.getName()).matches());
+	}
+
+	private static Path toPath(File file)
+	{
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * @param file a file of the outbox, or of the processing directory
+	 * @return the path of the subdirectory of the file, empty if it is at the top
+	 * @throws InvalidParameterException the outbox directory is not set
+	 */
+	protected String getRelativeDirectory(File file) throws InvalidParameterException
+	{
+		if (!recursive)
+		{
+			return "";
+		}
+
+		Path parent = toPath(file.getAbsoluteFile().getParentFile());
+		// the processing directory may be in the outbox
+		for (String root : new String[] { getParameter(PARAM_PROCESSING_DIRECTORY, false),
+				getParameter(PARAM_OUTBOX_DIRECTORY, true) })
+		{
+			if (root != null)
+			{
+				Path rootPath = toPath(new File(root));
+				if (parent.startsWith(rootPath))
+				{
+					return rootPath.relativize(parent).toString();
+				}
+			}
+		}
+
+		return "";
+	}
+
+	/**
+	 * Sends the changed files left unchanged for the quiet period.
+	 */
+	protected void processChangedFiles() throws OpenAS2Exception
+	{
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<String, Long>> it = changedFiles.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<String, Long> entry = it.next();
+			if (now - entry.getValue() < quietPeriod)
+			{
+				continue;
+			}
+
+			File file = new File(entry.getKey());
+			long modified = file.lastModified();
+			if (now - modified < quietPeriod)
+			{
+				// written without an event yet
+				entry.setValue(modified);
+				continue;
+			}
+
+			if (checkFile(file))
+			{
+				submitFile(file);
+			}
+			it.remove();
+		}
+
+		sendScheduledFiles();
+	}
+
+	/**
+	 * Queues a file to be sent, unless it is already queued or being sent. The file is sent by
+	 * {@link #sendScheduledFiles()} in the order of the {@link SendScheduler}.
+	 * 
+	 * @param file a file of the outbox
+	 */
+	protected void submitFile(File file)
+	{
+		if (claimedFiles.add(file.getAbsolutePath()))
+		{
+			Partnership partnership = getPartnership(file);
+			String name = null;
+			int priority = 0;
+			int weight = 1;
+
+			if (partnership != null)
+			{
+				name = partnership.getName();
+				priority = getIntAttribute(partnership, Partnership.PA_SEND_PRIORITY, 0);
+				weight = getIntAttribute(partnership, Partnership.PA_SEND_WEIGHT, 1);
+			}
+
+			for (Map.Entry<Pattern, Integer> pattern : priorityPatterns.entrySet())
+			{
+				if (pattern.getKey().matcher(file.getName()).matches())
+				{
+					priority = pattern.getValue();
+					break;
+				}
+			}
+
+			scheduler.add(file, name, priority, weight);
+		}
+	}
+
+	/**
+	 * Sends the queued files on the threads of the module while less than the maximum of files in flight are being sent.
+	 * Each thread sends the next queued files once it has sent its file. Sends them on the calling thread when the
+	 * module is not started.
+	 * 
+	 * @throws OpenAS2Exception a file could not be sent nor moved to the error directory
+	 */
+	protected void sendScheduledFiles() throws OpenAS2Exception
+	{
+		final ExecutorService pool = executor;
+		if (pool == null)
+		{
+			// not started, one file at a time, the scheduler is only locked to take the next file so files are added
+			// while one is sent
+			while (draining.compareAndSet(false, true))
+			{
+				try
+				{
+					File file;
+					while ((file = scheduler.poll()) != null)
+					{
+						sendFile(file);
+					}
+				}
+				finally
+				{
+					draining.set(false);
+				}
+
+				if (scheduler.size() == 0)
+				{
+					// otherwise added after the last poll, by a caller that found this one draining
+					return;
+				}
+			}
+			return;
+		}
+
+		sendScheduledFiles(pool);
+	}
+
+	private void sendScheduledFiles(final ExecutorService pool)
+	{
+		while (inFlight.tryAcquire())
+		{
+			final File file = scheduler.poll();
+			if (file == null)
+			{
+				inFlight.release();
+				return;
+			}
+
+			try
+			{
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							sendFile(file);
+						}
+						catch (OpenAS2Exception oae)
+						{
+							oae.terminate();
+						}
+						finally
+						{
+							inFlight.release();
+						}
+
+						sendScheduledFiles(pool);
+					}
+				});
+			}
+			catch (RejectedExecutionException ree)
+			{
+				// stopped, the file is found again when started
+				claimedFiles.remove(file.getAbsolutePath());
+				inFlight.release();
+				return;
+			}
+		}
+	}
+
+	private void sendFile(File file) throws OpenAS2Exception
+	{
+		try
+		{
+			if (file.isFile())
+			{
+				File claimedFile = claim(file);
+				if (claimedFile != null)
+				{
+					processFile(claimedFile);
+				}
+			}
+		}
+		finally
+		{
+			claimedFiles.remove(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @param file a file of the outbox
+	 * @return the partnership the file will be sent with, from its name and the defaults, null if unknown
+	 */
+	protected Partnership getPartnership(File file)
+	{
+		Message msg = createMessage();
+		try
+		{
+			setFileParameters(msg, file);
+			getSession().getPartnershipFactory().updatePartnership(msg, false);
+
+			return msg.getPartnership();
+		}
+		catch (Exception e)
+		{
+			// reported when the file is sent
+			LOGGER.debug("no partnership for {}", file, e);
+			return null;
+		}
+	}
+
+	private int getIntAttribute(Partnership partnership, String name, int defaultValue)
+	{
+		String value = partnership.getAttribute(name);
+		try
+		{
+			return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			LOGGER.warn("invalid {} {} of partnership {}", name, value, partnership.getName());
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Claims a file before it is sent: with a processing directory, the file is moved to it so no other module, of this
+	 * or another server sharing the outbox, sends it.
+	 * <p>
+	 * The file is hard linked into the processing directory, which fails if a file of the same name is already there,
+	 * then removed from the outbox: of the modules linking the same file to their own processing directory, the one
+	 * removing it wins and the others drop their link. Where hard links are not supported, the name is reserved in the
+	 * processing directory by creating an empty file, replaced by the file with an atomic rename.
+	 * 
+	 * @param file a file of the outbox
+	 * @return the file to send, null if it has been claimed by another module
+	 * @throws OpenAS2Exception the file could not be moved
+	 */
+	protected File claim(File file) throws OpenAS2Exception
+	{
+		String processingDir = getParameter(PARAM_PROCESSING_DIRECTORY, false);
+		if (processingDir == null)
+		{
+			return file;
+		}
+
+		try
+		{
+			File claimedDir = new File(IOUtilOld.getDirectoryFile(processingDir), getRelativeDirectory(file));
+			File claimedFile = new File(IOUtilOld.getDirectoryFile(claimedDir.getPath()), file.getName());
+			Path source = file.toPath();
+			Path target = claimedFile.toPath();
+
+			try
+			{
+				Files.createLink(target, source);
+			}
+			catch (FileAlreadyExistsException faee)
+			{
+				LOGGER.warn("a file {} is already being sent, {} is left in the outbox", claimedFile.getAbsolutePath(),
+						file.getAbsolutePath());
+				return null;
+			}
+			catch (NoSuchFileException nsfe)
+			{
+				// moved by another module
+				return null;
+			}
+			catch (UnsupportedOperationException uoe)
+			{
+				return claimByRename(file, claimedFile);
+			}
+			catch (FileSystemException fse)
+			{
+				// e.g. no hard links on this file system
+				if (!file.exists())
+				{
+					return null;
+				}
+				return claimByRename(file, claimedFile);
+			}
+
+			try
+			{
+				Files.delete(source);
+			}
+			catch (NoSuchFileException nsfe)
+			{
+				// claimed by another module meanwhile
+				Files.deleteIfExists(target);
+				return null;
+			}
+			catch (IOException ioe)
+			{
+				Files.deleteIfExists(target);
+				throw ioe;
+			}
+
+			return claimedFile;
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+	}
+
+	private File claimByRename(File file, File claimedFile) throws IOException
+	{
+		try
+		{
+			// reserves the name, an atomic rename alone replaces an existing file
+			Files.createFile(claimedFile.toPath());
+		}
+		catch (FileAlreadyExistsException faee)
+		{
+			LOGGER.warn("a file {} is already being sent, {} is left in the outbox", claimedFile.getAbsolutePath(),
+					file.getAbsolutePath());
+			return null;
+		}
+
+		try
+		{
+			Files.move(file.toPath(), claimedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return claimedFile;
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// moved by another module
+			Files.deleteIfExists(claimedFile.toPath());
+			return null;
+		}
+		catch (IOException ioe)
+		{
+			Files.deleteIfExists(claimedFile.toPath());
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Moves back to the outbox the files claimed but not sent when the module was stopped. Every file of the processing
+	 * directory is taken for one of this module, which is why the processing directory must be private to the module
+	 * and to the server: the files being sent by another one would be moved back and sent twice. A file whose name was
+	 * written to the outbox meanwhile is moved to the error directory.
+	 */
+	private void recoverClaimedFiles() throws OpenAS2Exception
+	{
+		String processingDir = getParameter(PARAM_PROCESSING_DIRECTORY, false);
+		if (processingDir == null)
+		{
+			return;
+		}
+
+		try
+		{
+			final Path outbox = IOUtilOld.getDirectoryFile(getParameter(PARAM_OUTBOX_DIRECTORY, true)).toPath();
+			final Path processing = IOUtilOld.getDirectoryFile(processingDir).toPath();
+			final File errorDir = IOUtilOld.getDirectoryFile(getParameter(PARAM_ERROR_DIRECTORY, true));
+			// in a tree, the files are moved back to their subdirectories
+			Files.walkFileTree(processing, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1,
+					new SimpleFileVisitor<Path>()
+					{
+						@Override
+						public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException
+						{
+							Path outboxFile = outbox.resolve(processing.relativize(path).toString());
+							if (!attrs.isRegularFile())
+							{
+								return FileVisitResult.CONTINUE;
+							}
+
+							if (Files.exists(outboxFile))
+							{
+								// written again to the outbox meanwhile, which of both is to be sent is unknown
+								File errorFile = IOUtilOld.moveFile(path.toFile(),
+										new File(errorDir, path.getFileName().toString()), false, true);
+								LOGGER.error("a file {} is already in the outbox, moved {} to {}", outboxFile, path,
+										errorFile.getAbsolutePath());
+							}
+							else
+							{
+								Files.createDirectories(outboxFile.getParent());
+								Files.move(path, outboxFile, StandardCopyOption.ATOMIC_MOVE);
+								LOGGER.info("moved {} back to the outbox", path);
+							}
+
+							return FileVisitResult.CONTINUE;
+						}
+					});
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+	}
+
     protected abstract Message createMessage();
 
-	public void updateMessage(Message msg, File file) throws OpenAS2Exception
+	/**
+	 * Sets the parameters of a message given by the defaults and the name of its file.
+	 * 
+	 * @param msg the message
+	 * @param file the file of the message
+	 * @return the parameters of the message
+	 * @throws OpenAS2Exception the name of the file does not match the format
+	 */
+	protected MessageParameters setFileParameters(Message msg, File file) throws OpenAS2Exception
 	{
         MessageParameters params = new MessageParameters(msg);
 
@@ -283,6 +1279,14 @@ public abstract class DirectoryPollingModule extends PollingModule
             params.setParameters(defaults);
         }
 
+        String directory = getRelativeDirectory(file);
+        String directoryFormat = getParameter(PARAM_DIRECTORY_FORMAT, false);
+
+        if (directoryFormat != null && directory.length() > 0)
+        {
+            params.setParameters(directoryFormat, "/\\", directory);
+        }
+
         String filename = file.getName();
         String format = getParameter(PARAM_FORMAT, false);
 
@@ -292,9 +1296,15 @@ public abstract class DirectoryPollingModule extends PollingModule
             params.setParameters(format, delimiters, filename);
         }
 
+        return params;
+	}
+
+	public void updateMessage(Message msg, File file) throws OpenAS2Exception
+	{
+        MessageParameters params = setFileParameters(msg, file);
+
 		try
 		{
-            byte[] data = IOUtilOld.getFileBytes(file);
             String contentType = getParameter(PARAM_MIMETYPE, false);
 			if (contentType == null)
 			{
@@ -312,9 +1322,10 @@ public abstract class DirectoryPollingModule extends PollingModule
             		contentType = "application/octet-stream";
             	}
             	}
-            ByteArrayDataSource byteSource = new ByteArrayDataSource(data, contentType, null);
+            // read from the file while the message is signed, encrypted and sent, it is not loaded in memory
+            FileBackedDataSource fileSource = new FileBackedDataSource(file, contentType, null);
             MimeBodyPart body = new MimeBodyPart();
-            body.setDataHandler(new DataHandler(byteSource));
+            body.setDataHandler(new DataHandler(fileSource));
             String encodeType = msg.getPartnership().getAttribute(Partnership.PA_CONTENT_TRANSFER_ENCODING);
             if (encodeType != null)
 			{
@@ -344,7 +1355,7 @@ public abstract class DirectoryPollingModule extends PollingModule
 
             msg.setData(body);
 		}
-		catch (MessagingException | IOException me)
+		catch (MessagingException me)
 		{
             throw new WrappedException(me);
 		}
@@ -354,6 +1365,23 @@ public abstract class DirectoryPollingModule extends PollingModule
         msg.updateMessageID();
     }
 
+	/**
+	 * A directory of the outbox tree, as last listed.
+	 */
+	private static class ScannedDirectory
+	{
+		private final long modified;
+
+		private final List<File> subdirectories = new ArrayList<File>();
+
+		private boolean hasFiles;
+
+		ScannedDirectory(long modified)
+		{
+			this.modified = modified;
+		}
+	}
+
 	public Map getTrackedFiles()
 	{
 		if (trackedFiles == null)
@@ -18,6 +18,7 @@ import org.openas2.params.DateParameters;
 import org.openas2.params.InvalidParameterException;
 import org.openas2.params.MessageParameters;
 import org.openas2.util.IOUtilOld;
+import org.openas2.util.UniqueFileAllocator;
 
 public abstract class NetModule extends BaseReceiverModule
 {
@@ -86,8 +87,7 @@ public abstract class NetModule extends BaseReceiverModule
 			String name = params.format(getParameter(PARAM_ERRORS, DEFAULT_ERRORS));
 			String directory = getParameter(PARAM_ERROR_DIRECTORY, true);
 
-			File msgFile = IOUtilOld.getUnique(IOUtilOld.getDirectoryFile(directory),
-					IOUtilOld.cleanFilename(name));
+			File msgFile = UniqueFileAllocator.allocate(IOUtilOld.getDirectoryFile(directory), name);
 			String msgText = msg.toString();
 			FileOutputStream fOut = new FileOutputStream(msgFile);
 
@@ -1,20 +1,17 @@
 package org.openas2.processor.receiver;
 
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.params.InvalidParameterException;
+import org.openas2.util.TaskScheduler;
 
 public abstract class PollingModule extends BaseReceiverModule
 {
 	public static final String PARAM_POLLING_INTERVAL = "interval";
 
-	private Timer timer;
-
-	private boolean busy;
+	private TaskScheduler.ScheduledTask task;
 
 	public void init(Session session, Map options) throws OpenAS2Exception
 	{
@@ -36,46 +33,36 @@ public abstract class PollingModule extends BaseReceiverModule
 
 	public abstract void poll();
 
+	/**
+	 * @return the name of the polling task in the statistics of the scheduler
+	 */
+	protected String getTaskName()
+	{
+		return getName();
+	}
+
 	public void doStart() throws OpenAS2Exception
 	{
-		timer = new Timer(true);
-		timer.scheduleAtFixedRate(new PollTask(), 0, getInterval() * 1000);
+		// with a fixed delay a poll never overlaps the previous one
+		task = getSession().getScheduler().scheduleWithFixedDelay(getTaskName(), new PollTask(), 0,
+				getInterval() * 1000L);
 	}
 
 	public void doStop() throws OpenAS2Exception
 	{
-		if (timer != null)
+		if (task != null)
 		{
-			timer.cancel();
-			timer = null;
+			task.cancel();
+			task = null;
 		}
 	}
 
-	private class PollTask extends TimerTask
+	private class PollTask implements Runnable
 	{
 		public void run()
 		{
-			if (!isBusy())
-			{
-				setBusy(true);
-				poll();
-				setBusy(false);
-			}
-			else
-			{
-				System.out.println("Miss tick");
-			}
+			poll();
 		}
 	}
 
-	public boolean isBusy()
-	{
-		return busy;
-	}
-
-	public void setBusy(boolean b)
-	{
-		busy = b;
-	}
-
 }
@@ -0,0 +1,111 @@
+package org.openas2.processor.receiver;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Orders the files ready to be sent so one partnership does not starve the others.
+ * <p>
+ * Files of a higher priority are always sent first. Files of the same priority are sent in weighted fair order across
+ * their partnerships (self-clocked fair queuing): each file is tagged with the bytes its partnership has been given,
+ * divided by the weight of the partnership, and the file with the lowest tag is sent next. A partnership with 20,000
+ * files queued then takes turns with a partnership with a single file, rather than sending all its files first.
+ */
+public class SendScheduler
+{
+	private final PriorityQueue<Item> queue = new PriorityQueue<Item>();
+
+	/** Tag of the last file queued, by partnership. */
+	private final Map<String, Double> lastTags = new HashMap<String, Double>();
+
+	/** Tag of the last file taken. */
+	private double virtualTime;
+
+	private long sequence;
+
+	/**
+	 * Queues a file.
+	 *
+	 * @param file the file
+	 * @param partnership the name of the partnership of the file
+	 * @param priority the priority of the file, higher first
+	 * @param weight the share of the partnership, 1 by default
+	 */
+	public synchronized void add(File file, String partnership, int priority, int weight)
+	{
+		if (partnership == null)
+		{
+			partnership = "";
+		}
+
+		Double last = lastTags.get(partnership);
+		double start = (last == null) ? virtualTime : Math.max(virtualTime, last);
+		double tag = start + (double)Math.max(file.length(), 1) / Math.max(weight, 1);
+		lastTags.put(partnership, tag);
+
+		queue.add(new Item(file, priority, tag, sequence++));
+	}
+
+	/**
+	 * @return the next file to send, null if none is queued
+	 */
+	public synchronized File poll()
+	{
+		Item item = queue.poll();
+		if (item == null)
+		{
+			return null;
+		}
+
+		virtualTime = Math.max(virtualTime, item.tag);
+		if (queue.isEmpty())
+		{
+			// every partnership starts over
+			lastTags.clear();
+			virtualTime = 0;
+		}
+
+		return item.file;
+	}
+
+	public synchronized int size()
+	{
+		return queue.size();
+	}
+
+	private static final class Item implements Comparable<Item>
+	{
+		private final File file;
+
+		private final int priority;
+
+		private final double tag;
+
+		private final long sequence;
+
+		Item(File file, int priority, double tag, long sequence)
+		{
+			this.file = file;
+			this.priority = priority;
+			this.tag = tag;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Item other)
+		{
+			if (priority != other.priority)
+			{
+				return (priority > other.priority) ? -1 : 1;
+			}
+			if (tag != other.tag)
+			{
+				return (tag < other.tag) ? -1 : 1;
+			}
+
+			return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+		}
+	}
+}
@@ -1,23 +1,152 @@
 package org.openas2.processor.resender;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.WrappedException;
 import org.openas2.message.AS2Message;
 import org.openas2.message.Message;
+import org.openas2.processor.sender.SenderModule;
+import org.openas2.util.IOUtilOld;
+import org.openas2.util.TaskScheduler;
+import org.openas2.util.UniqueFileAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Class use to resend an AS2Message.
+ * <p>
+ * A message to resend is written at once to a file of <code>spooldir</code>, see {@link ResendRecord}, named after the
+ * time it is due, and the thread of the failed send is released. The session scheduler only times the resends: a
+ * message due is read back from its file and sent again by a thread of the module, then its file is removed. The files
+ * left when the server stops or is killed are resent once it starts again, so a message is never lost between its
+ * failure and its resend.
+ * <p>
+ * The resends are meant to be short: the delay doubles from <code>sleep_duration</code> up to
+ * <code>maxresenddelay</code>, 7 seconds by default. {@link DirectoryResenderModule} is meant for longer outages.
  * 
  * @author MARY Olivier.
  */
 public class AS2ResenderModule extends BaseResenderModule
 {
+	/** Number of threads resending the messages. */
+	public static final String PARAM_THREADS = "threads";
+
+	/** Directory the messages waiting for a resend are written to. */
+	public static final String PARAM_SPOOL_DIRECTORY = "spooldir";
+
+	public static final int DEFAULT_THREADS = 4;
+
+	private static final String SPOOL_PREFIX = "resend-";
+
+	private static final String SPOOL_SUFFIX = ".spool";
+
+	/** Milliseconds the resends in progress are waited for when the session shuts down. */
+	private static final long SHUTDOWN_TIMEOUT = 60 * 1000;
+
 	/** Logger for the class. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(AS2ResenderModule.class);
 
+	private File spoolDir;
+
+	private ExecutorService executor;
+
+	/** Files of the resends scheduled and not finished, with their timer. */
+	private final Map<File, TaskScheduler.ScheduledTask> scheduled =
+			new ConcurrentHashMap<File, TaskScheduler.ScheduledTask>();
+
+	@Override
+	public void init(Session session, Map options) throws OpenAS2Exception
+	{
+		super.init(session, options);
+
+		try
+		{
+			spoolDir = IOUtilOld.getDirectoryFile(getParameter(PARAM_SPOOL_DIRECTORY, true));
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+
+		final String name = getName();
+		final AtomicInteger threadCount = new AtomicInteger();
+		int threads = getParameterInt(PARAM_THREADS, DEFAULT_THREADS);
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		session.addShutdownHook(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Stops the resends: the ones in progress are finished, the ones waiting for their delay stay in the spool
+	 * directory and are resent at the next start.
+	 */
+	protected void shutdown()
+	{
+		for (TaskScheduler.ScheduledTask timer : scheduled.values())
+		{
+			timer.cancel();
+		}
+
+		executor.shutdown();
+
+		try
+		{
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+			{
+				LOGGER.warn("resends still in progress after {} ms, interrupting them", SHUTDOWN_TIMEOUT);
+				executor.shutdownNow();
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		if (!scheduled.isEmpty())
+		{
+			LOGGER.info("{} keeps {} resends in {} for the next start", getName(), scheduled.size(), spoolDir);
+			scheduled.clear();
+		}
+	}
+
+	@Override
+	protected int getDefaultMaxResendDelay()
+	{
+		return ResenderModule.OPTION_MAX_SLEEP_DURATION / 1000;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -35,7 +164,6 @@ public class AS2ResenderModule extends BaseResenderModule
 	/**
 	 * {@inheritDoc}
 	 */
-	@SuppressWarnings({ "unchecked", "null" })
 	@Override
 	public void handle(String action, Message msg, Map options) throws OpenAS2Exception
 	{
@@ -53,16 +181,110 @@ public class AS2ResenderModule extends BaseResenderModule
 			throw new OpenAS2Exception("Can't resend non-AS2 message");
 		}
 
+		long delay = getRetryPolicy(getSleepDuration(options)).forMessage(msg).nextDelay(msg);
+		if (delay < 0)
+		{
+			abandon(msg, options.get(ResenderModule.OPTION_CAUSE));
+			return;
+		}
+
+		String method = (String)options.get(ResenderModule.OPTION_RESEND_METHOD);
+		if (method == null)
+		{
+			method = SenderModule.DO_SEND;
+		}
+
+		long due = System.currentTimeMillis() + delay;
+		File file;
+		try
+		{
+			// written before returning: the caller then moves or deletes the file the message was read from
+			file = UniqueFileAllocator.allocate(spoolDir, SPOOL_PREFIX + due + SPOOL_SUFFIX);
+			try
+			{
+				ResendRecord.write(file, method, Integer.toString(retries), msg);
+			}
+			catch (IOException ioe)
+			{
+				file.delete();
+				throw ioe;
+			}
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+
+		LOGGER.info("retries waiting [{} milliseconds], resend {}", delay, RetryPolicy.getAttempts(msg));
+		schedule(file, delay);
+	}
+
+	/**
+	 * Times the resend of a spooled message on the session scheduler. A resend not scheduled, the session shutting
+	 * down, is left in the spool directory for the next start.
+	 */
+	private void schedule(File file, long delay)
+	{
+		try
+		{
+			scheduled.put(file, getSession().getScheduler().schedule(getName(), new DueTask(file), delay));
+		}
+		catch (RejectedExecutionException ree)
+		{
+			LOGGER.info("resend kept for the next start {}", file);
+		}
+	}
+
+	/**
+	 * Schedules the messages left in the spool directory by a previous run, at the time they were due.
+	 */
+	private void recoverSpooledFiles()
+	{
+		File[] files = spoolDir.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(SPOOL_PREFIX) && name.contains(SPOOL_SUFFIX);
+			}
+		});
+
+		if (files == null)
+		{
+			LOGGER.error("unable to list the spool directory {}", spoolDir);
+			return;
+		}
+
+		int recovered = 0;
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < files.length; i++)
+		{
+			if (!scheduled.containsKey(files[i]))
+			{
+				schedule(files[i], Math.max(0, getDueTime(files[i].getName()) - now));
+				recovered++;
+			}
+		}
+
+		if (recovered > 0)
+		{
+			LOGGER.info("{} resends found in {}", recovered, spoolDir);
+		}
+	}
+
+	/**
+	 * @return time the file is due, from its name, 0 if the name is not a time
+	 */
+	private static long getDueTime(String name)
+	{
 		try
 		{
-			// wait for retry
-			sleep(options);
-			// it will recall resend if fail again and retries != 0.
-			getSession().getProcessor().handle((String)options.get(ResenderModule.OPTION_RESEND_METHOD), msg, options);
+			return Long.parseLong(name.substring(SPOOL_PREFIX.length(), name.indexOf(SPOOL_SUFFIX)));
 		}
-		catch (Exception e)
+		catch (NumberFormatException nfe)
 		{
-			LOGGER.error("resubmit impossible cause : {}", e);
+			return 0;
 		}
 	}
 
@@ -117,6 +339,22 @@ public class AS2ResenderModule extends BaseResenderModule
 	 * @throws NumberFormatException
 	 */
 	protected void sleep(Map options) throws NumberFormatException, InterruptedException
+	{
+		long iSleepDuration = getSleepDuration(options);
+
+		LOGGER.info("retries waiting [{} milliseconds]", iSleepDuration);
+		Thread.sleep(iSleepDuration);
+	}
+
+	/**
+	 * Get the duration to wait before the first resend.
+	 * 
+	 * @param options
+	 *        Map which contains options.
+	 * @return duration in milliseconds.
+	 * @throws NumberFormatException
+	 */
+	protected long getSleepDuration(Map options) throws NumberFormatException
 	{
 		String sleepDuration;
 		int iSleepDuration = 0;
@@ -134,36 +372,134 @@ public class AS2ResenderModule extends BaseResenderModule
 				sleepDuration = null;
 				LOGGER.debug("One error occured, left variable has been assigned to null.", e);
 			}
+		}
 
-			if (sleepDuration == null)
-			{
-				iSleepDuration = ResenderModule.OPTION_MAX_SLEEP_DURATION;
-			}
-			else
-			{
-				iSleepDuration = Integer.parseInt(sleepDuration);
-			}
-
-			if (iSleepDuration > ResenderModule.OPTION_MAX_SLEEP_DURATION || iSleepDuration <= 0)
-			{
-				iSleepDuration = ResenderModule.OPTION_MAX_SLEEP_DURATION;
-			}
+		if (sleepDuration == null)
+		{
+			iSleepDuration = ResenderModule.OPTION_MAX_SLEEP_DURATION;
+		}
+		else
+		{
+			iSleepDuration = Integer.parseInt(sleepDuration);
+		}
 
-			LOGGER.info("retries waiting [{} milliseconds]", iSleepDuration);
-			Thread.sleep(iSleepDuration);
+		if (iSleepDuration > ResenderModule.OPTION_MAX_SLEEP_DURATION || iSleepDuration <= 0)
+		{
+			iSleepDuration = ResenderModule.OPTION_MAX_SLEEP_DURATION;
 		}
+
+		return iSleepDuration;
 	}
 
 	@Override
 	public void doStart() throws OpenAS2Exception
 	{
-		throw new IllegalArgumentException("Forbidden to start a thread!");
+		// once every module is started, the messages left by the previous run are resent
+		recoverSpooledFiles();
 	}
 
 	@Override
 	public void doStop() throws OpenAS2Exception
 	{
-		throw new IllegalArgumentException("Forbidden to stop a thread!");
+		// the pool is stopped with the session, see shutdown()
 	}
 
+	/**
+	 * Hands a resend due to a thread of the module, the threads of the session scheduler only time it.
+	 */
+	private class DueTask implements Runnable
+	{
+		private final File file;
+
+		DueTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				executor.execute(new ResendTask(file));
+			}
+			catch (RejectedExecutionException ree)
+			{
+				// shutting down, resent at the next start
+				scheduled.remove(file);
+			}
+		}
+	}
+
+	private static void close(ResendRecord record)
+	{
+		try
+		{
+			record.close();
+		}
+		catch (IOException ioe)
+		{
+			LOGGER.trace("unable to close resend record", ioe);
+		}
+	}
+
+	/**
+	 * Sends a spooled message again, on a thread of the module.
+	 */
+	private class ResendTask implements Runnable
+	{
+		private final File file;
+
+		ResendTask(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				ResendRecord record;
+				try
+				{
+					record = ResendRecord.read(file);
+				}
+				catch (IOException ioe)
+				{
+					File bad = new File(file.getPath() + ".bad");
+					LOGGER.error("unable to read resend " + file + ", renamed to " + bad.getName(), ioe);
+					file.renameTo(bad);
+					return;
+				}
+
+				Message msg = record.getMessage();
+				try
+				{
+					Map<String, Object> options = new HashMap<String, Object>();
+					options.put(SenderModule.SOPT_RETRIES, record.getRetries());
+					// it will spool a new resend if it fails again and retries != 0
+					getSession().getProcessor().handle(record.getMethod(), msg, options);
+				}
+				catch (Exception e)
+				{
+					LOGGER.error("resubmit impossible cause : {}", e);
+				}
+				finally
+				{
+					// the body is read from the file, a further resend has its own file
+					close(record);
+				}
+
+				if (!file.delete() && file.exists())
+				{
+					LOGGER.error("unable to remove resent message {}, it will be sent again at the next start", file);
+				}
+			}
+			finally
+			{
+				scheduled.remove(file);
+			}
+		}
+	}
 }
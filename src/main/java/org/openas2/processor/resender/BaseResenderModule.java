@@ -1,37 +1,95 @@
 package org.openas2.processor.resender;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import org.openas2.OpenAS2Exception;
+import org.openas2.message.Message;
+import org.openas2.params.InvalidParameterException;
 import org.openas2.processor.BaseActiveModule;
+import org.openas2.processor.NoModuleException;
+import org.openas2.processor.storage.StorageModule;
+import org.openas2.util.TaskScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class BaseResenderModule extends BaseActiveModule implements ResenderModule
 {
 	public static final int TICK_INTERVAL = 30 * 1000;
 
-	private Timer timer;
+	/** Seconds the resend delay, doubled with each resend, is capped at. */
+	public static final String PARAM_MAX_RESEND_DELAY = "maxresenddelay";
+
+	/** Resends before a message fails, 0 for no limit. */
+	public static final String PARAM_MAX_ATTEMPTS = "maxattempts";
+
+	/** Minutes after its first failure a message fails, 0 for no limit. */
+	public static final String PARAM_MAX_AGE = "maxage";
+
+	public static final int DEFAULT_MAX_RESEND_DELAY = 4 * 60 * 60; // 4 hours
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BaseResenderModule.class);
+
+	private TaskScheduler.ScheduledTask task;
 
 	public abstract void resend();
 
 	@Override
 	public void doStart() throws OpenAS2Exception
 	{
-		timer = new Timer(true);
-		timer.scheduleAtFixedRate(new PollTask(), 0, TICK_INTERVAL);
+		task = getSession().getScheduler().scheduleWithFixedDelay(getName(), new PollTask(), 0, TICK_INTERVAL);
 	}
 
 	@Override
 	public void doStop() throws OpenAS2Exception
 	{
-		if (timer != null)
+		if (task != null)
+		{
+			task.cancel();
+			task = null;
+		}
+	}
+
+	/**
+	 * @param delay milliseconds before the first resend, when the partnership does not set it
+	 * @return the retry policy of the module, see {@link RetryPolicy#forMessage(Message)} for the one of a message
+	 * @throws InvalidParameterException a parameter of the policy is not a number
+	 */
+	protected RetryPolicy getRetryPolicy(long delay) throws InvalidParameterException
+	{
+		return new RetryPolicy(delay, getParameterInt(PARAM_MAX_RESEND_DELAY, getDefaultMaxResendDelay()) * 1000L,
+				getParameterInt(PARAM_MAX_ATTEMPTS, 0), getParameterInt(PARAM_MAX_AGE, 0) * 60000L);
+	}
+
+	/**
+	 * @return seconds the resend delay is capped at when {@link #PARAM_MAX_RESEND_DELAY} is not set
+	 */
+	protected int getDefaultMaxResendDelay()
+	{
+		return DEFAULT_MAX_RESEND_DELAY;
+	}
+
+	/**
+	 * Gives up resending a message, it is handed to the error storage.
+	 *
+	 * @param msg the message
+	 * @param cause the last failure of the message, may be null
+	 * @throws OpenAS2Exception the message could not be stored
+	 */
+	protected void abandon(Message msg, Object cause) throws OpenAS2Exception
+	{
+		LOGGER.error("After " + RetryPolicy.getAttempts(msg) + " resends, the following message is abandoned: "
+				+ msg.getLoggingText() + ((cause != null) ? " cause: " + cause : ""));
+
+		try
+		{
+			getSession().getProcessor().handle(StorageModule.DO_STORE_ERROR, msg, null);
+		}
+		catch (NoModuleException nme)
 		{
-			timer.cancel();
-			timer = null;
+			LOGGER.warn("no error storage configured, message dropped {}", msg.getLoggingText());
 		}
 	}
 
-	private class PollTask extends TimerTask
+	private class PollTask implements Runnable
 	{
 		@Override
 		public void run()
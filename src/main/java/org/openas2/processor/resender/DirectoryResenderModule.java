@@ -1,11 +1,10 @@
 package org.openas2.processor.resender;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -13,18 +12,36 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.WrappedException;
 import org.openas2.message.Message;
 import org.openas2.params.InvalidParameterException;
+import org.openas2.partner.Partnership;
 import org.openas2.processor.sender.SenderModule;
 import org.openas2.util.DateUtil;
 import org.openas2.util.IOUtilOld;
+import org.openas2.util.UniqueFileAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Queues the messages to resend in files of a directory, see {@link ResendQueue} and {@link ResendRecord}.
+ * <p>
+ * The queue is sharded by partnership and drained by a pool of threads: the messages of different partnerships are
+ * resent in parallel, and at most <code>partnerthreads</code> messages of a partnership at a time, so a partner coming
+ * back after an outage does not hold up the others.
+ */
 public class DirectoryResenderModule extends BaseResenderModule
 {
 	public static final String PARAM_RESEND_DIRECTORY = "resenddir";
@@ -33,12 +50,49 @@ public class DirectoryResenderModule extends BaseResenderModule
 
 	public static final String PARAM_RESEND_DELAY = "resenddelay"; // in seconds
 
-	// TODO Resend set to 15 minutes. Implement a scaling resend time with eventual permanent failure of transmission
+	/** File journaling the resend queue, resenddir/.resend.journal by default. */
+	public static final String PARAM_JOURNAL = "journal";
+
+	public static final String DEFAULT_JOURNAL = ".resend.journal";
+
+	/** Threads resending the messages. */
+	public static final String PARAM_THREADS = "threads";
+
+	/** Messages of a partnership resent at the same time, 0 for no limit. */
+	public static final String PARAM_PARTNER_THREADS = "partnerthreads";
+
+	public static final int DEFAULT_THREADS = 4;
+
+	public static final int DEFAULT_PARTNER_THREADS = 1;
+
+	// first resend within 15 minutes, then doubled up to maxresenddelay, see RetryPolicy
 	public static final long DEFAULT_RESEND_DELAY = 15 * 60 * 1000; // 15 minutes
 
+	/** Milliseconds the messages being resent are waited for when stopped. */
+	private static final long STOP_TIMEOUT = 60 * 1000;
+
 	/** Logger for the class. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryResenderModule.class);
 
+	private volatile ResendQueue queue;
+
+	private Thread dispatcher;
+
+	private ExecutorService executor;
+
+	/** Messages resent, and set aside in the error directory. */
+	private final AtomicLong resent = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Times a queued message could be neither resent nor set aside, by name. */
+	private final Map<String, Integer> dispatchFailures = new ConcurrentHashMap<String, Integer>();
+
+	/** Messages resent in each of the last 60 seconds, by second. */
+	private final long[] drainSeconds = new long[60];
+
+	private final long[] drainCounts = new long[60];
+
 	public boolean canHandle(String action, Message msg, Map options)
 	{
 		return action.equals(ResenderModule.DO_RESEND);
@@ -48,11 +102,18 @@ public class DirectoryResenderModule extends BaseResenderModule
 	public void handle(String action, Message msg, Map options)
 			throws OpenAS2Exception
 	{
+		long delay = getRetryPolicy(getResendDelay()).forMessage(msg).nextDelay(msg);
+		if (delay < 0)
+		{
+			abandon(msg, options.get(ResenderModule.OPTION_CAUSE));
+			return;
+		}
+
 		try
 		{
 			File resendDir = IOUtilOld.getDirectoryFile(getParameter(PARAM_RESEND_DIRECTORY, true));
-			File resendFile = IOUtilOld.getUnique(resendDir, getFilename());
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(resendFile));
+			long resendTime = System.currentTimeMillis() + delay;
+			File resendFile = UniqueFileAllocator.allocate(resendDir, getFilename(resendTime));
 			String method = (String)options.get(ResenderModule.OPTION_RESEND_METHOD);
 			if (method == null)
 			{
@@ -63,12 +124,15 @@ public class DirectoryResenderModule extends BaseResenderModule
 			{
 				retries = "-1";
 			}
-			oos.writeObject(method);
-			oos.writeObject(retries);
-			oos.writeObject(msg);
-			oos.close();
+			// the body is streamed to the file, see ResendRecord
+			ResendRecord.write(resendFile, method, retries, msg);
 
-			LOGGER.info("message put in resend queue {}", msg.getLoggingText());
+			// messages without a partnership are queued in the default shard
+			Partnership partnership = msg.getPartnership();
+			queue.add(resendFile.getName(), (partnership != null) ? partnership.getName() : null, resendTime);
+
+			LOGGER.info("message put in resend queue, resend {} in {} s {}", RetryPolicy.getAttempts(msg), delay / 1000,
+					msg.getLoggingText());
 		}
 		catch (IOException ioe)
 		{
@@ -82,74 +146,363 @@ public class DirectoryResenderModule extends BaseResenderModule
 		super.init(session, options);
 		getParameter(PARAM_RESEND_DIRECTORY, true);
 		getParameter(PARAM_ERROR_DIRECTORY, true);
+
+		queue = openQueue();
 	}
 
-	@Override
-	public void resend()
+	/**
+	 * Opens the queue, replaying its journal, and queues the files of the resend directory not in the journal.
+	 */
+	private ResendQueue openQueue() throws OpenAS2Exception
 	{
 		try
 		{
+			File resendDir = IOUtilOld.getDirectoryFile(getParameter(PARAM_RESEND_DIRECTORY, true));
+			String journal = getParameter(PARAM_JOURNAL, false);
+			ResendQueue opened = new ResendQueue((journal != null) ? new File(journal) : new File(resendDir,
+					DEFAULT_JOURNAL));
+			opened.setShardLimit(getParameterInt(PARAM_PARTNER_THREADS, DEFAULT_PARTNER_THREADS));
+
+			// files queued without the journal, by a previous version, are due at the time in their name
+			int found = 0;
+			DirectoryStream<Path> files = Files.newDirectoryStream(resendDir.toPath());
 			try
 			{
-				// get a list of files that need to be sent now
-				List sendFiles = scanDirectory();
+				for (Path path : files)
+				{
+					File file = path.toFile();
+					if (file.isFile() && !file.getName().startsWith(".") && !opened.contains(file.getName()))
+					{
+						opened.add(file.getName(), getResendTime(file));
+						found++;
+					}
+				}
+			}
+			finally
+			{
+				files.close();
+			}
+
+			if (found > 0)
+			{
+				LOGGER.info("queued {} messages found in {}", found, resendDir);
+			}
+
+			return opened;
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+	}
+
+	@Override
+	public void doStart() throws OpenAS2Exception
+	{
+		if (queue.isClosed())
+		{
+			// closed when the module was stopped
+			queue = openQueue();
+		}
+
+		final ResendQueue queue = this.queue;
+		final int threads = getParameterInt(PARAM_THREADS, DEFAULT_THREADS);
+		final String moduleName = getName();
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, moduleName + "-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// messages taken from the queue but not resent yet, they stay in the queue for the other partnerships
+		final Semaphore permits = new Semaphore(threads);
+		executor = pool;
+
+		// sleeps until the next message is due instead of polling
+		dispatcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						permits.acquire();
+
+						final String name = queue.take();
+						if (name == null)
+						{
+							break;
+						}
+
+						pool.execute(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								try
+								{
+									dispatch(name);
+								}
+								finally
+								{
+									permits.release();
+								}
+							}
+						});
+					}
+				}
+				catch (InterruptedException ie)
+				{
+					// stopped
+				}
+			}
+		}, moduleName + "-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
 
-				// iterator through and send each file
-				Iterator fileIt = sendFiles.iterator();
-				File currentFile;
+	@Override
+	public void doStop() throws OpenAS2Exception
+	{
+		if (dispatcher != null)
+		{
+			dispatcher.interrupt();
+			dispatcher = null;
+		}
 
-				while (fileIt.hasNext())
+		if (executor != null)
+		{
+			// the messages being resent are finished, and done in the journal
+			executor.shutdown();
+			try
+			{
+				if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
 				{
-					currentFile = (File)fileIt.next();
-					processFile(currentFile);
+					LOGGER.warn("{} messages still being resent, they will be resent after a restart",
+							queue.getInProgress());
 				}
 			}
-			catch (IOException ioe)
+			catch (InterruptedException ie)
 			{
-				throw new WrappedException(ioe);
+				Thread.currentThread().interrupt();
 			}
+			executor = null;
 		}
-		catch (OpenAS2Exception oae)
+
+		try
 		{
-			oae.terminate();
-			forceStop(oae);
+			queue.close();
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
 		}
 	}
 
-	protected String getFilename() throws InvalidParameterException
+	/**
+	 * Resends the messages due now.
+	 */
+	@Override
+	public void resend()
 	{
-		long resendDelay;
-		if (getParameter(PARAM_RESEND_DELAY, false) == null)
+		String name;
+		while ((name = queue.poll()) != null)
 		{
-			resendDelay = DEFAULT_RESEND_DELAY;
+			dispatch(name);
 		}
-		else
+	}
+
+	/**
+	 * @return the queue of the messages to resend
+	 */
+	public ResendQueue getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * @return the number of messages resent since the module was started, whether they were sent or queued again
+	 */
+	public long getResentCount()
+	{
+		return resent.get();
+	}
+
+	/**
+	 * @return the number of messages set aside in the error directory since the module was started
+	 */
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of messages resent in the last minute
+	 */
+	public long getDrainRate()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		long count = 0;
+
+		synchronized (drainCounts)
+		{
+			for (int i = 0; i < drainSeconds.length; i++)
+			{
+				if (second - drainSeconds[i] < drainSeconds.length)
+				{
+					count += drainCounts[i];
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private void countResent()
+	{
+		resent.incrementAndGet();
+
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int)(second % drainSeconds.length);
+
+		synchronized (drainCounts)
 		{
-			resendDelay = getParameterInt(PARAM_RESEND_DELAY, false) * 1000;
+			if (drainSeconds[slot] != second)
+			{
+				drainSeconds[slot] = second;
+				drainCounts[slot] = 0;
+			}
+			drainCounts[slot]++;
 		}
-		long resendTime = new Date().getTime() + resendDelay;
+	}
+
+	private void dispatch(String name)
+	{
+		File file = null;
+
+		try
+		{
+			file = new File(IOUtilOld.getDirectoryFile(getParameter(PARAM_RESEND_DIRECTORY, true)), name);
 
+			if (file.exists())
+			{
+				// each message is counted once, resent or failed
+				if (processFile(file))
+				{
+					countResent();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			LOGGER.error("Error occured to resend " + name, e);
+		}
+		finally
+		{
+			try
+			{
+				if ((file == null) || file.exists())
+				{
+					// neither resent nor set aside, e.g. the error directory can not be written
+					long delay = getRetryDelay(name);
+					queue.retry(name, System.currentTimeMillis() + delay);
+					LOGGER.warn("{} could be neither resent nor set aside, retried in {} s", name, delay / 1000);
+				}
+				else
+				{
+					// resent, set aside in the error directory, or queued again under another name
+					dispatchFailures.remove(name);
+					queue.done(name);
+				}
+			}
+			catch (Exception e)
+			{
+				LOGGER.error("Unable to update " + name + " in the resend journal", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the delay before a message that could not be dispatched is tried again, doubled each time up to the
+	 *         maximum resend delay
+	 */
+	private long getRetryDelay(String name) throws InvalidParameterException
+	{
+		Integer previous = dispatchFailures.get(name);
+		int failures = (previous == null) ? 0 : previous.intValue();
+		dispatchFailures.put(name, failures + 1);
+
+		long maxDelay = getParameterInt(PARAM_MAX_RESEND_DELAY, DEFAULT_MAX_RESEND_DELAY) * 1000L;
+
+		return Math.min(getResendDelay() << Math.min(failures, 20), maxDelay);
+	}
+
+	protected long getResendDelay() throws InvalidParameterException
+	{
+		if (getParameter(PARAM_RESEND_DELAY, false) == null)
+		{
+			return DEFAULT_RESEND_DELAY;
+		}
+
+		return getParameterInt(PARAM_RESEND_DELAY, false) * 1000L;
+	}
+
+	protected String getFilename() throws InvalidParameterException
+	{
+		return getFilename(System.currentTimeMillis() + getResendDelay());
+	}
+
+	/**
+	 * The file name only tells when the message is due to people looking at the directory, the queue keeps the time.
+	 * 
+	 * @param resendTime time in milliseconds the message is due
+	 * @return the name of the file
+	 */
+	protected String getFilename(long resendTime)
+	{
 		return DateUtil.formatDate("MM-dd-yy-HH-mm-ss", new Date(resendTime));
 	}
 
-	protected boolean isTimeToSend(File currentFile)
+	/**
+	 * @param currentFile a queued file
+	 * @return time the file is due, from its name, now if the name is not a time
+	 */
+	protected long getResendTime(File currentFile)
 	{
 		try
 		{
 			StringTokenizer fileTokens = new StringTokenizer(currentFile.getName(), ".", false);
 
-			Date timestamp = DateUtil.parseDate("MM-dd-yy-HH-mm-ss", fileTokens.nextToken());
-
-			return timestamp.before(new Date());
+			return DateUtil.parseDate("MM-dd-yy-HH-mm-ss", fileTokens.nextToken()).getTime();
 		}
 		catch (Exception e)
 		{
 			LOGGER.debug("Error occured to define if it's time to send because : ", e);
-			return true;
+			return System.currentTimeMillis();
 		}
 	}
 
-	protected void processFile(File file) throws OpenAS2Exception
+	protected boolean isTimeToSend(File currentFile)
+	{
+		return getResendTime(currentFile) < System.currentTimeMillis();
+	}
+
+	/**
+	 * Resends a queued file, or moves it to the error directory if it can not be resent.
+	 *
+	 * @param file the queued file
+	 * @return true if resent, whether sent or queued again, false if moved to the error directory
+	 * @throws OpenAS2Exception the file could not be moved to the error directory
+	 */
+	protected boolean processFile(File file) throws OpenAS2Exception
 	{
 		LOGGER.debug("processing {}", file.getAbsolutePath());
 
@@ -159,18 +512,22 @@ public class DirectoryResenderModule extends BaseResenderModule
 		{
 			try
 			{
-				ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-				String method = (String)ois.readObject();
-				String retries = (String)ois.readObject();
-				msg = (Message)ois.readObject();
-				ois.close();
-
-				// Transmit the message
-				LOGGER.info("loaded message for resend. {}", msg.getLoggingText());
+				ResendRecord record = ResendRecord.read(file);
+				msg = record.getMessage();
+				try
+				{
+					// Transmit the message
+					LOGGER.info("loaded message for resend. {}", msg.getLoggingText());
 
-				Map options = new HashMap();
-				options.put(SenderModule.SOPT_RETRIES, retries);
-				getSession().getProcessor().handle(method, msg, options);
+					Map options = new HashMap();
+					options.put(SenderModule.SOPT_RETRIES, record.getRetries());
+					getSession().getProcessor().handle(record.getMethod(), msg, options);
+				}
+				finally
+				{
+					// the body is read from the file, which is deleted or moved below
+					record.close();
+				}
 
 				if (!file.delete())
 				{ // Delete the file, sender will re-queue if the transmission fails again
@@ -179,15 +536,13 @@ public class DirectoryResenderModule extends BaseResenderModule
 				}
 
 				LOGGER.info("deleted {}", file.getAbsolutePath() + msg.getLoggingText());
+
+				return true;
 			}
 			catch (IOException ioe)
 			{
 				throw new WrappedException(ioe);
 			}
-			catch (ClassNotFoundException cnfe)
-			{
-				throw new WrappedException(cnfe);
-			}
 		}
 		catch (final OpenAS2Exception oae)
 		{
@@ -197,6 +552,9 @@ public class DirectoryResenderModule extends BaseResenderModule
 
 			LOGGER.error("Error occured to process message: ", oae);
 			IOUtilOld.handleError(file, getParameter(PARAM_ERROR_DIRECTORY, true));
+			failed.incrementAndGet();
+
+			return false;
 		}
 	}
 
@@ -0,0 +1,547 @@
+package org.openas2.processor.resender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Messages waiting to be resent, ordered by due time, with a journal so they are not lost on restart.
+ * <p>
+ * The queue is a priority queue in memory: {@link #take()} sleeps until the earliest message is due, or until an earlier
+ * one is added, rather than scanning the queued files at a fixed interval. Each message added and each message done is
+ * appended to the journal. The journal is replayed when the queue is created, then rewritten with the messages still
+ * queued, and again whenever it holds more done messages than queued ones.
+ * <p>
+ * Messages are queued in shards, one for each partnership, and at most a number of messages of a shard are taken and
+ * not yet done, see {@link #setShardLimit(int)}. The messages of one partnership are then resent in order, while the
+ * other partnerships are resent in parallel.
+ */
+public class ResendQueue
+{
+	private static final byte OP_ADD = 'A';
+
+	private static final byte OP_DONE = 'D';
+
+	/** Added to a shard. */
+	private static final byte OP_ADD_SHARD = 'S';
+
+	/** Shard of the messages queued without one. */
+	private static final String DEFAULT_SHARD = "";
+
+	/** Done entries tolerated in the journal before it is rewritten. */
+	private static final int MIN_COMPACT_ENTRIES = 1000;
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResendQueue.class);
+
+	private final File journalFile;
+
+	private final Map<String, Shard> shards = new HashMap<String, Shard>();
+
+	/** Shards with a queued entry that may be taken, by due time of their first entry. */
+	private final PriorityQueue<Shard> ready = new PriorityQueue<Shard>();
+
+	/** Queued and in progress entries, by name. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** Entries of a shard in progress at the same time, 0 for no limit. */
+	private int shardLimit;
+
+	private int inProgress;
+
+	private DataOutputStream journal;
+
+	private long sequence;
+
+	private int doneEntries;
+
+	private boolean closed;
+
+	public ResendQueue(File journalFile) throws IOException
+	{
+		this.journalFile = journalFile;
+
+		replay();
+		compact();
+	}
+
+	/**
+	 * Queues a message in the default shard.
+	 *
+	 * @param name the name of the queued message
+	 * @param due time in milliseconds the message is due
+	 * @throws IOException the message could not be journaled, it is not queued
+	 */
+	public void add(String name, long due) throws IOException
+	{
+		add(name, null, due);
+	}
+
+	/**
+	 * Queues a message.
+	 *
+	 * @param name the name of the queued message
+	 * @param shard the shard of the message, its partnership, null for the default shard
+	 * @param due time in milliseconds the message is due
+	 * @throws IOException the message could not be journaled, it is not queued
+	 */
+	public synchronized void add(String name, String shard, long due) throws IOException
+	{
+		if (shard == null)
+		{
+			shard = DEFAULT_SHARD;
+		}
+
+		writeEntry(due, name, shard);
+		journal.flush();
+
+		Entry previous = entries.get(name);
+		if (previous != null)
+		{
+			remove(previous);
+		}
+
+		Entry entry = enqueue(name, shard, due);
+
+		if (ready.peek() == entry.shard)
+		{
+			// earlier than the entry take() waits for
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Queues again a message taken, in its shard, when it could be neither resent nor set aside.
+	 *
+	 * @param name the name of the message
+	 * @param due time in milliseconds the message is due again
+	 * @throws IOException the message could not be journaled, it is taken again after a restart
+	 */
+	public synchronized void retry(String name, long due) throws IOException
+	{
+		Entry entry = entries.get(name);
+
+		add(name, (entry != null) ? entry.shard.name : DEFAULT_SHARD, due);
+	}
+
+	/**
+	 * @param shardLimit entries of a shard taken and not yet done at the same time, 0 for no limit
+	 */
+	public synchronized void setShardLimit(int shardLimit)
+	{
+		this.shardLimit = shardLimit;
+
+		ready.clear();
+		for (Shard shard : shards.values())
+		{
+			if (shard.isReady())
+			{
+				ready.add(shard);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the next message due.
+	 *
+	 * @return the name of the message, or null once the queue is closed
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	public synchronized String take() throws InterruptedException
+	{
+		while (!closed)
+		{
+			Shard head = ready.peek();
+			long now = System.currentTimeMillis();
+
+			if (head == null)
+			{
+				wait();
+			}
+			else if (head.getDue() <= now)
+			{
+				return dequeue();
+			}
+			else
+			{
+				wait(head.getDue() - now);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the name of a message due, or null if none is due now
+	 */
+	public synchronized String poll()
+	{
+		Shard head = ready.peek();
+
+		if ((head != null) && (head.getDue() <= System.currentTimeMillis()))
+		{
+			return dequeue();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes a message from the queue, once it has been resent or set aside.
+	 *
+	 * @param name the name of the message
+	 * @throws IOException the journal could not be written, the message will be taken again after a restart
+	 */
+	public synchronized void done(String name) throws IOException
+	{
+		Entry entry = entries.get(name);
+		if (entry == null)
+		{
+			return;
+		}
+		remove(entry);
+		// a message of the shard may be taken now
+		notifyAll();
+
+		writeEntry(OP_DONE, 0, name);
+		journal.flush();
+		doneEntries++;
+
+		if (doneEntries > Math.max(MIN_COMPACT_ENTRIES, entries.size()))
+		{
+			compact();
+		}
+	}
+
+	public synchronized boolean contains(String name)
+	{
+		return entries.containsKey(name);
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of messages taken and not yet done
+	 */
+	public synchronized int getInProgress()
+	{
+		return inProgress;
+	}
+
+	/**
+	 * @return the number of messages queued or in progress, by shard
+	 */
+	public synchronized Map<String, Integer> getShardSizes()
+	{
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		for (Shard shard : shards.values())
+		{
+			sizes.put(shard.name, shard.entries.size() + shard.inProgress);
+		}
+
+		return sizes;
+	}
+
+	/**
+	 * @return the time the earliest message that may be taken is due, or -1 if there is none
+	 */
+	public synchronized long getNextDue()
+	{
+		Shard head = ready.peek();
+
+		return (head == null) ? -1 : head.getDue();
+	}
+
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Closes the journal, {@link #take()} then returns null and messages can no longer be added or done.
+	 *
+	 * @throws IOException the journal could not be closed
+	 */
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		notifyAll();
+
+		if (journal != null)
+		{
+			journal.close();
+			journal = null;
+		}
+	}
+
+	private void replay() throws IOException
+	{
+		if (!journalFile.exists())
+		{
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+		try
+		{
+			while (true)
+			{
+				byte op = in.readByte();
+				long due = in.readLong();
+				String name = in.readUTF();
+				// journals of previous versions have no shard
+				String shard = (op == OP_ADD_SHARD) ? in.readUTF() : DEFAULT_SHARD;
+
+				Entry previous = entries.get(name);
+				if (previous != null)
+				{
+					remove(previous);
+				}
+				if (op != OP_DONE)
+				{
+					enqueue(name, shard, due);
+				}
+			}
+		}
+		catch (EOFException eofe)
+		{
+			// end of the journal, or an entry partially written when stopped
+		}
+		finally
+		{
+			in.close();
+		}
+
+		LOGGER.info("loaded {} messages to resend from {}", entries.size(), journalFile);
+	}
+
+	/**
+	 * Rewrites the journal with the entries still queued or in progress.
+	 */
+	private void compact() throws IOException
+	{
+		if (journal != null)
+		{
+			journal.close();
+		}
+
+		File parent = journalFile.getAbsoluteFile().getParentFile();
+		Files.createDirectories(parent.toPath());
+		File tempFile = File.createTempFile("journal", ".tmp", parent);
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			journal = out;
+			try
+			{
+				for (Entry entry : entries.values())
+				{
+					writeEntry(entry.due, entry.name, entry.shard.name);
+				}
+			}
+			finally
+			{
+				journal = null;
+				out.close();
+			}
+
+			try
+			{
+				Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException amnse)
+			{
+				Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+
+		journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		doneEntries = 0;
+	}
+
+	private Entry enqueue(String name, String shardName, long due)
+	{
+		Shard shard = shards.get(shardName);
+		if (shard == null)
+		{
+			shard = new Shard(shardName);
+			shards.put(shardName, shard);
+		}
+
+		Entry entry = new Entry(name, shard, due, sequence++);
+		entries.put(name, entry);
+
+		// the position of a shard in the ready queue depends on its first entry
+		ready.remove(shard);
+		entry.queued = true;
+		shard.entries.add(entry);
+		if (shard.isReady())
+		{
+			ready.add(shard);
+		}
+
+		return entry;
+	}
+
+	private String dequeue()
+	{
+		Shard shard = ready.poll();
+
+		// in progress until done
+		Entry entry = shard.entries.poll();
+		entry.queued = false;
+		shard.inProgress++;
+		inProgress++;
+
+		if (shard.isReady())
+		{
+			ready.add(shard);
+		}
+
+		return entry.name;
+	}
+
+	private void remove(Entry entry)
+	{
+		Shard shard = entry.shard;
+
+		entries.remove(entry.name);
+		ready.remove(shard);
+		if (entry.queued)
+		{
+			shard.entries.remove(entry);
+		}
+		else
+		{
+			shard.inProgress--;
+			inProgress--;
+		}
+
+		if (shard.isReady())
+		{
+			ready.add(shard);
+		}
+		else if (shard.entries.isEmpty() && (shard.inProgress == 0))
+		{
+			shards.remove(shard.name);
+		}
+	}
+
+	private void writeEntry(long due, String name, String shard) throws IOException
+	{
+		if (DEFAULT_SHARD.equals(shard))
+		{
+			writeEntry(OP_ADD, due, name);
+		}
+		else
+		{
+			writeEntry(OP_ADD_SHARD, due, name);
+			journal.writeUTF(shard);
+		}
+	}
+
+	private void writeEntry(byte op, long due, String name) throws IOException
+	{
+		if (journal == null)
+		{
+			throw new IOException("Resend queue " + journalFile + " is closed");
+		}
+
+		journal.writeByte(op);
+		journal.writeLong(due);
+		journal.writeUTF(name);
+	}
+
+	/**
+	 * The queued entries of a partnership.
+	 */
+	private final class Shard implements Comparable<Shard>
+	{
+		private final String name;
+
+		private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+
+		private int inProgress;
+
+		Shard(String name)
+		{
+			this.name = name;
+		}
+
+		boolean isReady()
+		{
+			return !entries.isEmpty() && ((shardLimit <= 0) || (inProgress < shardLimit));
+		}
+
+		long getDue()
+		{
+			return entries.peek().due;
+		}
+
+		@Override
+		public int compareTo(Shard other)
+		{
+			return entries.peek().compareTo(other.entries.peek());
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry>
+	{
+		private final String name;
+
+		private final Shard shard;
+
+		private final long due;
+
+		/** Keeps the messages due at the same time in the order they were queued. */
+		private final long sequence;
+
+		private boolean queued;
+
+		Entry(String name, Shard shard, long due, long sequence)
+		{
+			this.name = name;
+			this.shard = shard;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other)
+		{
+			if (due != other.due)
+			{
+				return (due < other.due) ? -1 : 1;
+			}
+
+			return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+		}
+	}
+}
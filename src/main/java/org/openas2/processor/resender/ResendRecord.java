@@ -0,0 +1,516 @@
+package org.openas2.processor.resender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.ParseException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.message.DataHistory;
+import org.openas2.message.DataHistoryItem;
+import org.openas2.message.Message;
+import org.openas2.message.MessageMDN;
+import org.openas2.partner.Partnership;
+
+/**
+ * A message queued for resend, in a file of the resend directory.
+ * <p>
+ * The file starts with a fixed header: a magic number, the version of the format, the method and retries of the resend
+ * and the class of the message. It is followed by blocks, each prefixed with its number of entries, for the partnership,
+ * the attributes, the data history and the headers of the message, then by its MDN if any, and ends with the MIME body
+ * of the message prefixed with its length. The body is written straight from the message to the file, and read back as
+ * a part of the file, so it is never copied in memory.
+ * <p>
+ * Files written with Java serialization by previous versions are still read.
+ */
+public class ResendRecord
+{
+	/** "OARS" */
+	private static final int MAGIC = 0x4F415253;
+
+	private static final short VERSION = 1;
+
+	/** First bytes of a Java serialization stream. */
+	private static final int SERIALIZATION_MAGIC = 0xACED;
+
+	private final String method;
+
+	private final String retries;
+
+	private final Message message;
+
+	/** The file the body of the message is read from, closed with {@link #close()}. */
+	private final SharedFileInputStream source;
+
+	private ResendRecord(String method, String retries, Message message, SharedFileInputStream source)
+	{
+		this.method = method;
+		this.retries = retries;
+		this.message = message;
+		this.source = source;
+	}
+
+	public String getMethod()
+	{
+		return method;
+	}
+
+	public String getRetries()
+	{
+		return retries;
+	}
+
+	public Message getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Closes the file of the record. The body of the message can not be read any more.
+	 *
+	 * @throws IOException the file could not be closed
+	 */
+	public void close() throws IOException
+	{
+		if (source != null)
+		{
+			source.close();
+		}
+	}
+
+	/**
+	 * Writes a message to resend.
+	 *
+	 * @param file the file to write, created or replaced
+	 * @param method the action resending the message
+	 * @param retries the retries left
+	 * @param msg the message
+	 * @throws IOException the file could not be written
+	 */
+	public static void write(File file, String method, String retries, Message msg) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			writeString(out, method);
+			writeString(out, retries);
+			writeString(out, msg.getClass().getName());
+
+			writePartnership(out, msg.getPartnership());
+			writeMap(out, msg.getAttributes());
+			writeHistory(out, msg.getHistory());
+			writeHeaders(out, msg.getHeaders());
+
+			MessageMDN mdn = msg.getMDN();
+			out.writeBoolean(mdn != null);
+			if (mdn != null)
+			{
+				writeString(out, mdn.getClass().getName());
+				writePartnership(out, mdn.getPartnership());
+				writeMap(out, mdn.getAttributes());
+				writeString(out, mdn.getText());
+				writeHeaders(out, mdn.getHeaders());
+				writeBody(out, fos.getChannel(), mdn.getData());
+			}
+
+			writeBody(out, fos.getChannel(), msg.getData());
+			out.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	/**
+	 * Reads a message to resend. The body of the message is read from the file until the record is closed.
+	 *
+	 * @param file a file written with {@link #write(File, String, String, Message)}, or by a previous version
+	 * @return the record
+	 * @throws IOException the file could not be read
+	 */
+	public static ResendRecord read(File file) throws IOException
+	{
+		SharedFileInputStream source = new SharedFileInputStream(file);
+		boolean read = false;
+		try
+		{
+			DataInputStream in = new DataInputStream(source);
+			int magic = in.readInt();
+
+			if ((magic >>> 16) == SERIALIZATION_MAGIC)
+			{
+				return readSerialized(file);
+			}
+			if (magic != MAGIC)
+			{
+				throw new IOException("Not a resend file: " + file);
+			}
+
+			short version = in.readShort();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported version " + version + " of resend file " + file);
+			}
+
+			String method = readString(in);
+			String retries = readString(in);
+			Message msg = (Message)newInstance(readString(in));
+
+			msg.setPartnership(readPartnership(in));
+			msg.setAttributes(readMap(in));
+			msg.setHistory(readHistory(in));
+			msg.setHeaders(readHeaders(in));
+
+			if (in.readBoolean())
+			{
+				MessageMDN mdn = newMDN(readString(in), msg);
+				mdn.setPartnership(readPartnership(in));
+				mdn.setAttributes(readMap(in));
+				mdn.setText(readString(in));
+				mdn.setHeaders(readHeaders(in));
+				mdn.setData(readBody(in, source));
+			}
+
+			try
+			{
+				// the history read above already has the item of the data
+				msg.setData(readBody(in, source), null);
+			}
+			catch (OpenAS2Exception oae)
+			{
+				throw new IOException("Unable to set the data of the message", oae);
+			}
+
+			read = true;
+			return new ResendRecord(method, retries, msg, source);
+		}
+		finally
+		{
+			if (!read)
+			{
+				source.close();
+			}
+		}
+	}
+
+	private static ResendRecord readSerialized(File file) throws IOException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			String method = (String)ois.readObject();
+			String retries = (String)ois.readObject();
+			Message msg = (Message)ois.readObject();
+
+			return new ResendRecord(method, retries, msg, null);
+		}
+		catch (ClassNotFoundException cnfe)
+		{
+			throw new IOException("Unable to read resend file " + file, cnfe);
+		}
+		finally
+		{
+			ois.close();
+		}
+	}
+
+	private static Object newInstance(String className) throws IOException
+	{
+		try
+		{
+			return Class.forName(className).getConstructor().newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Unable to create a " + className, e);
+		}
+	}
+
+	private static MessageMDN newMDN(String className, Message msg) throws IOException
+	{
+		try
+		{
+			// the MDN classes are created for their message, e.g. AS2MessageMDN(AS2Message)
+			for (Constructor<?> constructor : Class.forName(className).getConstructors())
+			{
+				Class<?>[] types = constructor.getParameterTypes();
+				if ((types.length == 1) && types[0].isInstance(msg))
+				{
+					return (MessageMDN)constructor.newInstance(msg);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Unable to create a " + className, e);
+		}
+
+		throw new IOException("No constructor of " + className + " for a " + msg.getClass().getName());
+	}
+
+	private static void writeBody(DataOutputStream out, FileChannel channel, MimeBodyPart body) throws IOException
+	{
+		if (body == null)
+		{
+			out.writeLong(-1);
+			return;
+		}
+
+		// the length is written once the body has been streamed to the file
+		out.flush();
+		long lengthPosition = channel.position();
+		out.writeLong(0);
+
+		try
+		{
+			body.writeTo(out);
+		}
+		catch (MessagingException me)
+		{
+			throw new IOException("Messaging exception: " + me.getMessage(), me);
+		}
+
+		out.flush();
+		long end = channel.position();
+		ByteBuffer length = ByteBuffer.allocate(8);
+		length.putLong(end - lengthPosition - 8).flip();
+		while (length.hasRemaining())
+		{
+			channel.write(length, lengthPosition + length.position());
+		}
+	}
+
+	private static MimeBodyPart readBody(DataInputStream in, SharedFileInputStream source) throws IOException
+	{
+		long length = in.readLong();
+		if (length < 0)
+		{
+			return null;
+		}
+
+		long start = source.getPosition();
+		InputStream body = source.newStream(start, start + length);
+		long skipped = 0;
+		while (skipped < length)
+		{
+			long n = in.skip(length - skipped);
+			if (n <= 0)
+			{
+				throw new IOException("Resend file truncated");
+			}
+			skipped += n;
+		}
+
+		try
+		{
+			// the content of the part stays in the file
+			return new MimeBodyPart(body);
+		}
+		catch (MessagingException me)
+		{
+			throw new IOException("Messaging exception: " + me.getMessage(), me);
+		}
+	}
+
+	private static void writePartnership(DataOutputStream out, Partnership partnership) throws IOException
+	{
+		out.writeBoolean(partnership != null);
+		if (partnership != null)
+		{
+			writeString(out, partnership.getName());
+			writeMap(out, partnership.getSenderIDs());
+			writeMap(out, partnership.getReceiverIDs());
+			writeMap(out, partnership.getAttributes());
+		}
+	}
+
+	private static Partnership readPartnership(DataInputStream in) throws IOException
+	{
+		if (!in.readBoolean())
+		{
+			return null;
+		}
+
+		Partnership partnership = new Partnership();
+		partnership.setName(readString(in));
+		partnership.setSenderIDs(readMap(in));
+		partnership.setReceiverIDs(readMap(in));
+		partnership.setAttributes(readMap(in));
+
+		return partnership;
+	}
+
+	private static void writeHistory(DataOutputStream out, DataHistory history) throws IOException
+	{
+		List<?> items = history.getItems();
+		out.writeInt(items.size());
+		for (Object element : items)
+		{
+			DataHistoryItem item = (DataHistoryItem)element;
+			writeString(out, item.getContentType().toString());
+			writeMap(out, item.getAttributes());
+		}
+	}
+
+	// the history holds raw lists and maps
+	@SuppressWarnings("unchecked")
+	private static DataHistory readHistory(DataInputStream in) throws IOException
+	{
+		DataHistory history = new DataHistory();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			try
+			{
+				DataHistoryItem item = new DataHistoryItem(readString(in));
+				item.getAttributes().putAll(readMap(in));
+				history.getItems().add(item);
+			}
+			catch (ParseException pe)
+			{
+				throw new IOException("Invalid content type in the data history", pe);
+			}
+		}
+
+		return history;
+	}
+
+	private static void writeHeaders(DataOutputStream out, InternetHeaders headers) throws IOException
+	{
+		if (headers == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		int count = 0;
+		for (Enumeration<?> en = headers.getAllHeaderLines(); en.hasMoreElements(); en.nextElement())
+		{
+			count++;
+		}
+
+		out.writeInt(count);
+		for (Enumeration<?> en = headers.getAllHeaderLines(); en.hasMoreElements();)
+		{
+			writeString(out, en.nextElement().toString());
+		}
+	}
+
+	private static InternetHeaders readHeaders(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0)
+		{
+			return null;
+		}
+
+		InternetHeaders headers = new InternetHeaders();
+		for (int i = 0; i < count; i++)
+		{
+			headers.addHeaderLine(readString(in));
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Writes a map of strings, the attributes and IDs are only set as strings. Any other key or value is rejected
+	 * rather than read back as a string.
+	 */
+	private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException
+	{
+		if (map == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(map.size());
+		for (Map.Entry<?, ?> entry : map.entrySet())
+		{
+			Object key = entry.getKey();
+			Object value = entry.getValue();
+
+			if (!(key instanceof String) || ((value != null) && !(value instanceof String)))
+			{
+				throw new IOException("Attribute " + key + " is not a string, it can not be kept for resend");
+			}
+
+			writeString(out, (String)key);
+			writeString(out, (String)value);
+		}
+	}
+
+	private static Map<String, String> readMap(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0)
+		{
+			return null;
+		}
+
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < count; i++)
+		{
+			String key = readString(in);
+			map.put(key, readString(in));
+		}
+
+		return map;
+	}
+
+	/**
+	 * Strings are written as their UTF-8 length and bytes, -1 for null, headers and attributes may exceed the 64 KB of
+	 * {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+}
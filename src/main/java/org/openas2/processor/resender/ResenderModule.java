@@ -19,4 +19,10 @@ public interface ResenderModule extends ProcessorModule
 	public static final String OPTION_SLEEP_DURATION = "sleep_duration";
 
 	public static final int OPTION_MAX_SLEEP_DURATION = 7000;
+
+	/** Message attribute counting the times the message has been queued for resend. */
+	public static final String MA_RESEND_COUNT = "resend_count";
+
+	/** Message attribute with the time in milliseconds the message first failed to be sent. */
+	public static final String MA_FIRST_FAILURE = "resend_first_failure";
 }
@@ -0,0 +1,148 @@
+package org.openas2.processor.resender;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openas2.message.Message;
+import org.openas2.partner.Partnership;
+
+/**
+ * When to resend a message that could not be sent, and when to give up.
+ * <p>
+ * The delay doubles with each resend up to a maximum, and the actual delay is drawn at random between zero and it (full
+ * jitter): the messages queued while a partner was down are spread over the delay instead of all being resent at once
+ * when it comes back. A message fails for good after a number of resends or once it has been failing for some time.
+ * <p>
+ * The number of resends and the time of the first failure are kept in the attributes of the message, so they survive
+ * the resend queue. Each value of the policy is taken from the partnership of the message, or else from the resender
+ * module.
+ */
+public class RetryPolicy
+{
+	private final long delay;
+
+	private final long maxDelay;
+
+	private final int maxAttempts;
+
+	private final long maxAge;
+
+	/**
+	 * @param delay milliseconds before the first resend
+	 * @param maxDelay milliseconds the delay is capped at
+	 * @param maxAttempts resends before the message fails, 0 for no limit
+	 * @param maxAge milliseconds after the first failure the message fails, 0 for no limit
+	 */
+	public RetryPolicy(long delay, long maxDelay, int maxAttempts, long maxAge)
+	{
+		this.delay = delay;
+		this.maxDelay = Math.max(delay, maxDelay);
+		this.maxAttempts = maxAttempts;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @param msg the message to resend
+	 * @return the policy of the partnership of the message, with the values it does not set taken from this policy
+	 */
+	public RetryPolicy forMessage(Message msg)
+	{
+		Partnership partnership = msg.getPartnership();
+
+		if (partnership == null)
+		{
+			return this;
+		}
+
+		return new RetryPolicy(getLong(partnership, Partnership.PA_RESEND_DELAY, delay, 1000),
+				getLong(partnership, Partnership.PA_RESEND_MAX_DELAY, maxDelay, 1000),
+				(int)getLong(partnership, Partnership.PA_RESEND_MAX_ATTEMPTS, maxAttempts, 1),
+				getLong(partnership, Partnership.PA_RESEND_MAX_AGE, maxAge, 60000));
+	}
+
+	/**
+	 * Counts a failure of the message.
+	 *
+	 * @param msg the message that failed
+	 * @return the milliseconds to wait before resending it, or -1 if it must not be resent
+	 */
+	public long nextDelay(Message msg)
+	{
+		int attempts = getAttempts(msg);
+		long now = System.currentTimeMillis();
+		long firstFailure = getFirstFailure(msg, now);
+
+		if ((maxAttempts > 0) && (attempts >= maxAttempts))
+		{
+			return -1;
+		}
+
+		if ((maxAge > 0) && (now - firstFailure >= maxAge))
+		{
+			return -1;
+		}
+
+		msg.setAttribute(ResenderModule.MA_RESEND_COUNT, Integer.toString(attempts + 1));
+		msg.setAttribute(ResenderModule.MA_FIRST_FAILURE, Long.toString(firstFailure));
+
+		// delay * 2^attempts, stopping at the maximum
+		long ceiling = delay;
+		for (int i = 0; (i < attempts) && (ceiling < maxDelay); i++)
+		{
+			ceiling *= 2;
+		}
+		ceiling = Math.min(ceiling, maxDelay);
+
+		return (ceiling > 0) ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+	}
+
+	/**
+	 * @param msg a message
+	 * @return the number of times the message has been queued for resend
+	 */
+	public static int getAttempts(Message msg)
+	{
+		String count = msg.getAttribute(ResenderModule.MA_RESEND_COUNT);
+
+		try
+		{
+			return (count == null) ? 0 : Integer.parseInt(count);
+		}
+		catch (NumberFormatException nfe)
+		{
+			return 0;
+		}
+	}
+
+	private static long getFirstFailure(Message msg, long now)
+	{
+		String firstFailure = msg.getAttribute(ResenderModule.MA_FIRST_FAILURE);
+
+		try
+		{
+			return (firstFailure == null) ? now : Long.parseLong(firstFailure);
+		}
+		catch (NumberFormatException nfe)
+		{
+			return now;
+		}
+	}
+
+	private static long getLong(Partnership partnership, String attribute, long defaultValue, long unit)
+	{
+		String value = partnership.getAttribute(attribute);
+
+		if (value == null)
+		{
+			return defaultValue;
+		}
+
+		try
+		{
+			return Long.parseLong(value.trim()) * unit;
+		}
+		catch (NumberFormatException nfe)
+		{
+			return defaultValue;
+		}
+	}
+}
@@ -35,9 +35,10 @@ import org.openas2.partner.Partnership;
 import org.openas2.partner.SecurePartnership;
 import org.openas2.processor.storage.StorageModule;
 import org.openas2.util.AS2UtilOld;
-import org.openas2.util.DateUtil;
+import org.openas2.util.CachedDateFormat;
 import org.openas2.util.DispositionOptions;
 import org.openas2.util.DispositionType;
+import org.openas2.util.FileTransfer;
 import org.openas2.util.IOUtilOld;
 import org.openas2.util.Profiler;
 import org.openas2.util.ProfilerStub;
@@ -123,7 +124,7 @@ public class AS2SenderModule extends HttpSenderModule
 				{
 					ProfilerStub transferStub = Profiler.startProfile();
 
-					int bytes = IOUtilOld.copy(messageIn, messageOut);
+					long bytes = FileTransfer.copy(messageIn, messageOut);
 
 					Profiler.endProfile(transferStub);
 					LOGGER.info("transferred {}", IOUtilOld.getTransferRate(bytes, transferStub) + msg.getLoggingText());
@@ -369,7 +370,9 @@ public class AS2SenderModule extends HttpSenderModule
 		// Oh dear, we've run out of reetries, do something interesting.
 		// TODO create a fake failure MDN
 		LOGGER.error("After " + tries + " tries, the following message is abandoned: " + msg.getLoggingText(), cause);
-		getSession().getProcessor().handle(StorageModule.DO_STORE_ERROR, msgArchive, null);
+		// the archive copy is only made once the message has been secured
+		getSession().getProcessor().handle(StorageModule.DO_STORE_ERROR, (msgArchive != null) ? msgArchive : msg,
+				null);
 	}
 
 	// Returns a MimeBodyPart or MimeMultipart object
@@ -430,7 +433,7 @@ public class AS2SenderModule extends HttpSenderModule
 
 		conn.setRequestProperty("Connection", "close, TE");
 		conn.setRequestProperty("User-Agent", IOpenAs2.NAME + ":" + IOpenAs2.CURRENT_VERSION + " sender");
-		conn.setRequestProperty("Date", DateUtil.formatDate("EEE, dd MMM yyyy HH:mm:ss Z"));
+		conn.setRequestProperty("Date", CachedDateFormat.HTTP_DATE.format());
 		conn.setRequestProperty("Message-ID", msg.getMessageID());
 		conn.setRequestProperty("Mime-Version", "1.0"); // make sure this is the encoding used in the msg, run TBF1
 		conn.setRequestProperty("Content-type", msg.getContentType());
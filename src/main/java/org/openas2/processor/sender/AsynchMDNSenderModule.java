@@ -18,7 +18,7 @@ import org.openas2.message.Message;
 import org.openas2.message.MessageMDN;
 import org.openas2.processor.resender.ResenderModule;
 import org.openas2.processor.storage.StorageModule;
-import org.openas2.util.DateUtil;
+import org.openas2.util.CachedDateFormat;
 import org.openas2.util.DispositionType;
 import org.openas2.util.IOUtilOld;
 import org.openas2.util.Profiler;
@@ -61,7 +61,7 @@ public class AsynchMDNSenderModule extends HttpSenderModule
 		conn.setRequestProperty("Connection", "close, TE");
 		conn.setRequestProperty("User-Agent", "OpenAS2 AsynchMDNSender");
 
-		conn.setRequestProperty("Date", DateUtil.formatDate("EEE, dd MMM yyyy HH:mm:ss Z"));
+		conn.setRequestProperty("Date", CachedDateFormat.HTTP_DATE.format());
 		conn.setRequestProperty("Message-ID", msg.getMessageID());
 		conn.setRequestProperty("Mime-Version", "1.0"); // make sure this is the encoding used in the msg, run TBF1
 		conn.setRequestProperty("Content-type", msg.getHeader("Content-type"));
@@ -180,6 +180,7 @@ public class AsynchMDNSenderModule extends HttpSenderModule
 		Map<String, Object> options = new HashMap<>();
 		options.put(ResenderModule.OPTION_CAUSE, cause);
 		options.put(ResenderModule.OPTION_INITIAL_SENDER, this);
+		options.put(ResenderModule.OPTION_RESEND_METHOD, SenderModule.DO_SENDMDN);
 		getSession().getProcessor().handle(ResenderModule.DO_RESEND, msg,
 				options);
 	}
@@ -34,6 +34,12 @@ public abstract class HttpSenderModule extends BaseSenderModule implements Sende
 			conn.setUseCaches(useCaches);
 			conn.setRequestMethod(requestMethod);
 
+			if (output)
+			{
+				// stream the request body as it is written rather than buffer it for its length
+				conn.setChunkedStreamingMode(0);
+			}
+
 			return conn;
 		}
 		catch (IOException ioe)
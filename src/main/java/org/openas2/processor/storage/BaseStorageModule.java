@@ -4,14 +4,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
+import org.openas2.WrappedException;
+import org.openas2.message.FileAttribute;
 import org.openas2.message.Message;
 import org.openas2.params.InvalidParameterException;
 import org.openas2.processor.BaseProcessorModule;
 import org.openas2.util.IOUtilOld;
+import org.openas2.util.UniqueFileAllocator;
 
 public abstract class BaseStorageModule extends BaseProcessorModule implements StorageModule
 {
@@ -21,6 +27,49 @@ public abstract class BaseStorageModule extends BaseProcessorModule implements S
 
 	public static final String PARAM_TEMPDIR = "tempdir";
 
+	/** "true" to write the files on a pool of writer threads, see {@link StorageWriter}. */
+	public static final String PARAM_ASYNC = "async";
+
+	public static final String PARAM_WRITERS = "writers";
+
+	public static final String PARAM_QUEUE_SIZE = "queuesize";
+
+	/** "false" to not force the files written asynchronously to disk, true by default. */
+	public static final String PARAM_FSYNC = "fsync";
+
+	/** Name or class name of the {@link StorageCodec} compressing the stored files, none by default. */
+	public static final String PARAM_COMPRESSION = "compression";
+
+	/** Directory of a {@link BlobStore} giving the hash of the stored content. */
+	public static final String PARAM_BLOB_DIR = "blobdir";
+
+	/** "true" to hard link the stored files to the blob of their content, keeping it once, rather than copy it. */
+	public static final String PARAM_LINK_BLOBS = "linkblobs";
+
+	/** Number of levels of shard directories the files are spread in under their configured directory, 0 by default. */
+	public static final String PARAM_SHARD_LEVELS = "shardlevels";
+
+	/** Number of shard directories of each level, 256 by default. */
+	public static final String PARAM_SHARD_BUCKETS = "shardbuckets";
+
+	public static final int DEFAULT_WRITERS = 2;
+
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	public static final int DEFAULT_SHARD_BUCKETS = 256;
+
+	private StorageWriter writer;
+
+	private StorageCodec codec;
+
+	private BlobStore blobStore;
+
+	private int shardLevels;
+
+	private int shardBuckets;
+
+	private String shardFormat;
+
 	@Override
 	public boolean canHandle(String action, Message msg, Map options)
 	{
@@ -57,6 +106,57 @@ public abstract class BaseStorageModule extends BaseProcessorModule implements S
 	{
 		super.init(session, options);
 		getParameter(PARAM_FILENAME, true);
+
+		codec = StorageCodecs.get(getParameter(PARAM_COMPRESSION, false));
+
+		shardLevels = getParameterInt(PARAM_SHARD_LEVELS, 0);
+		shardBuckets = getParameterInt(PARAM_SHARD_BUCKETS, DEFAULT_SHARD_BUCKETS);
+		if ((shardLevels < 0) || (shardLevels > 4))
+		{
+			throw new InvalidParameterException("Must be between 0 and 4", this, PARAM_SHARD_LEVELS,
+					Integer.toString(shardLevels));
+		}
+		if ((shardBuckets < 2) || (shardBuckets > 65536))
+		{
+			throw new InvalidParameterException("Must be between 2 and 65536", this, PARAM_SHARD_BUCKETS,
+					Integer.toString(shardBuckets));
+		}
+		// bucket directories named with a fixed number of hexadecimal digits
+		shardFormat = "%0" + Integer.toHexString(shardBuckets - 1).length() + "x";
+
+		boolean async = Boolean.parseBoolean(getParameter(PARAM_ASYNC, "false"));
+
+		String blobDir = getParameter(PARAM_BLOB_DIR, false);
+		if (blobDir != null)
+		{
+			try
+			{
+				blobStore = new BlobStore(new File(blobDir), codec,
+						async && Boolean.parseBoolean(getParameter(PARAM_FSYNC, "true")),
+						Boolean.parseBoolean(getParameter(PARAM_LINK_BLOBS, "false")));
+			}
+			catch (IOException ioe)
+			{
+				throw new WrappedException(ioe);
+			}
+		}
+
+		if (async)
+		{
+			final StorageWriter asyncWriter = new StorageWriter(getName(), getParameterInt(PARAM_WRITERS,
+					DEFAULT_WRITERS), getParameterInt(PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE),
+					Boolean.parseBoolean(getParameter(PARAM_FSYNC, "true")));
+			writer = asyncWriter;
+			// the queued files are written before the server exits
+			session.addShutdownHook(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					asyncWriter.shutdown();
+				}
+			});
+		}
 	}
 
 	protected abstract String getModuleAction();
@@ -90,14 +190,60 @@ public abstract class BaseStorageModule extends BaseProcessorModule implements S
 	protected File getFile(Message msg, String fileParam, String action) throws IOException, OpenAS2Exception
 	{
 		String filename = getFilename(msg, fileParam);
+		if (codec != null)
+		{
+			filename += codec.getExtension();
+		}
 
 		// make sure the parent directories exist
 		File file = new File(filename);
-		File parentDir = file.getParentFile();
-		parentDir.mkdirs();
-		// don't overwrite existing files
-		return IOUtilOld.getUnique(parentDir, IOUtilOld.cleanFilename(file.getName()));
+		File dir = getShardDirectory(file.getAbsoluteFile().getParentFile(), msg, file.getName());
+		// don't overwrite existing files, the parent directories are created if needed
+		if (getParameter(PARAM_TEMPDIR, false) != null)
+		{
+			// the file is moved from the temporary directory once written, only its name is taken
+			return UniqueFileAllocator.reserve(dir, file.getName());
+		}
+		return UniqueFileAllocator.allocate(dir, file.getName());
+
+	}
+
+	/**
+	 * Spreads the files in shard directories, chosen by a hash of the Message-ID so the files of a message, its headers
+	 * and MDN, are in the same shard.
+	 * 
+	 * @param dir the configured directory.
+	 * @param msg as2 message.
+	 * @param filename the name of the file, hashed when the message has no Message-ID.
+	 * @return the shard directory, the configured directory when sharding is off.
+	 */
+	protected File getShardDirectory(File dir, Message msg, String filename)
+	{
+		if (shardLevels == 0)
+		{
+			return dir;
+		}
+
+		String key = msg.getMessageID();
+		if (key == null)
+		{
+			key = filename;
+		}
+
+		// spread the bits of the key hash, String.hashCode alone leaves similar IDs in neighbouring buckets
+		long hash = key.hashCode() * 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 29;
+		hash *= 0xBF58476D1CE4E5B9L;
+		hash ^= hash >>> 32;
+
+		File shard = dir;
+		for (int level = 0; level < shardLevels; level++)
+		{
+			int bucket = (int)(((hash >>> (level * 16)) & 0xFFFF) % shardBuckets);
+			shard = new File(shard, String.format(shardFormat, bucket));
+		}
 
+		return shard;
 	}
 
 	protected abstract String getFilename(Message msg, String fileParam) throws InvalidParameterException;
@@ -107,30 +253,128 @@ public abstract class BaseStorageModule extends BaseProcessorModule implements S
 
 	protected void store(File msgFile, InputStream in) throws IOException, OpenAS2Exception
 	{
+		StorageWriter.waitFor(storeAsync(msgFile, in));
+	}
+
+	/**
+	 * Stores a stream, on the writer threads when the module is asynchronous. The caller must wait for the returned
+	 * future, with {@link StorageWriter#waitFor(Future)}, before acknowledging the message.
+	 * 
+	 * @param msgFile the destination file.
+	 * @param in the data to store, closed once stored.
+	 * @return a future giving the destination file once stored.
+	 * @throws IOException IO exception.
+	 * @throws OpenAS2Exception exception.
+	 */
+	protected Future<File> storeAsync(File msgFile, InputStream in) throws IOException, OpenAS2Exception
+	{
+		File tempFile = null;
 		String tempDirname = getParameter(PARAM_TEMPDIR, false);
 		if (tempDirname != null)
 		{
 			// write the data to a temporary directory first
 			File tempDir = IOUtilOld.getDirectoryFile(tempDirname);
 			String tempFilename = msgFile.getName();
-			File tempFile = IOUtilOld.getUnique(tempDir, tempFilename);
-			writeStream(in, tempFile);
+			tempFile = UniqueFileAllocator.allocate(tempDir, tempFilename);
+		}
+
+		if (writer != null)
+		{
+			// the writer discards the files of a failed write and releases the name reserved
+			return writer.submit(msgFile, tempFile, in, codec);
+		}
+
+		boolean stored = false;
+		try
+		{
+			if (tempFile != null)
+			{
+				writeStream(in, tempFile);
 
-			// copy the temp file over to the destination
-			tempFile.renameTo(msgFile);
+				// move the temp file to the name reserved for it
+				Files.move(tempFile.toPath(), msgFile.toPath());
+			}
+			else
+			{
+				writeStream(in, msgFile);
+			}
+			stored = true;
 		}
-		else
+		finally
 		{
-			writeStream(in, msgFile);
+			if (!stored)
+			{
+				discard((tempFile != null) ? tempFile : msgFile);
+			}
+			UniqueFileAllocator.release(msgFile);
 		}
+
+		return StorageWriter.completed(msgFile);
+	}
+
+	/**
+	 * Deletes a file given by {@link #getFile(Message, String, String)} whose storage failed, so no empty or partial
+	 * file is left in the directory, and releases its name.
+	 * 
+	 * @param file the file, may be null
+	 */
+	protected void discard(File file)
+	{
+		if (file != null)
+		{
+			file.delete();
+			UniqueFileAllocator.release(file);
+		}
+	}
+
+	/**
+	 * Stores the content of a message. With a blob store its hash is set as the {@link FileAttribute#MA_CONTENT_HASH}
+	 * attribute of the message, and with linking the content is stored once whatever the number of modules and
+	 * messages storing it.
+	 * 
+	 * @param msg the message.
+	 * @param msgFile the destination file.
+	 * @param in the content, closed once stored.
+	 * @return a future giving the destination file once stored.
+	 * @throws IOException IO exception.
+	 * @throws OpenAS2Exception exception.
+	 */
+	protected Future<File> storeContent(Message msg, File msgFile, InputStream in) throws IOException,
+			OpenAS2Exception
+	{
+		if (blobStore == null)
+		{
+			return storeAsync(msgFile, in);
+		}
+
+		try
+		{
+			msg.setAttribute(FileAttribute.MA_CONTENT_HASH, blobStore.store(in, msgFile));
+		}
+		finally
+		{
+			UniqueFileAllocator.release(msgFile);
+		}
+
+		return StorageWriter.completed(msgFile);
 	}
 
 	protected void writeStream(InputStream in, File destination) throws IOException
 	{
-		FileOutputStream out = new FileOutputStream(destination);
+		OutputStream out = new FileOutputStream(destination);
 		try
 		{
-			IOUtilOld.copy(in, out);
+			if (codec != null)
+			{
+				// compressed while written, the file is closed below
+				OutputStream compressed = StorageCodecs.compress(codec, out);
+				IOUtilOld.copy(in, compressed);
+				compressed.close();
+			}
+			else
+			{
+				IOUtilOld.copy(in, out);
+			}
 		}
 		finally
 		{
@@ -138,4 +382,12 @@ public abstract class BaseStorageModule extends BaseProcessorModule implements S
 			in.close();
 		}
 	}
+
+	/**
+	 * @return the codec compressing the stored files, or null
+	 */
+	public StorageCodec getCodec()
+	{
+		return codec;
+	}
 }
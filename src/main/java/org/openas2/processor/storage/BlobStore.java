@@ -0,0 +1,243 @@
+package org.openas2.processor.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.openas2.util.FileTransfer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed store of payloads. A payload is hashed with SHA-256 while it is written. By default every stored
+ * file is a private copy, only the hash is given. With linking enabled the payload is kept once under
+ * <code>dir/ab/cd/abcd...</code> whatever the number of times it is stored, and the stored files are hard links to the
+ * blob: the file system counts the references, and the blob takes no more space than one copy as long as any file
+ * links to it. Blobs are compressed by the codec given, each codec having its own blobs.
+ * <p>
+ * <b>With linking, the stored files and their blob are one file on disk.</b> Editing a stored file in place changes the blob and
+ * every other stored file with the same content; a stored file must be replaced (written under another name then
+ * renamed) or deleted, never rewritten. Likewise they share one modification time: storing a payload already stored
+ * refreshes it, so the blob is not taken for unreferenced while being linked, which also makes the other stored files
+ * of the payload look new to a retention by age.
+ * <p>
+ * A blob is published and linked while holding the lock of its name, see {@link #getLock(String)}, which the
+ * {@link StorageRetentionModule} also takes to remove a blob no longer linked.
+ */
+public class BlobStore
+{
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Locks of the blob names, by hash of the name. */
+	private static final Object[] LOCKS = new Object[64];
+
+	static
+	{
+		for (int i = 0; i < LOCKS.length; i++)
+		{
+			LOCKS[i] = new Object();
+		}
+	}
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+
+	private final File directory;
+
+	private final StorageCodec codec;
+
+	private final boolean fsync;
+
+	private final boolean link;
+
+	/**
+	 * @param directory the directory of the blobs, and of the payloads being written
+	 * @param codec the codec compressing the payloads, or null
+	 * @param fsync true to force the payloads to disk once written
+	 * @param link true to make the stored files hard links to a blob, false to give each one its own copy
+	 * @throws IOException the directory could not be created
+	 */
+	public BlobStore(File directory, StorageCodec codec, boolean fsync, boolean link) throws IOException
+	{
+		this.directory = directory;
+		this.codec = codec;
+		this.fsync = fsync;
+		this.link = link;
+
+		Files.createDirectories(directory.toPath());
+	}
+
+	/**
+	 * Stores a payload to a destination. With linking, the payload is stored as a blob unless the same payload is
+	 * already stored, and the destination is linked to the blob.
+	 *
+	 * @param in the payload, closed once read
+	 * @param destination the file written, or made a link to the blob, replaced if it exists
+	 * @return the SHA-256 hash of the payload, in hexadecimal
+	 * @throws IOException the payload could not be stored
+	 */
+	public String store(InputStream in, File destination) throws IOException
+	{
+		File tempFile = File.createTempFile("blob", ".tmp", directory);
+
+		try
+		{
+			String hash = write(in, tempFile);
+
+			if (!link)
+			{
+				// a file of its own, nothing on disk is shared with the other stored files
+				FileTransfer.move(tempFile, destination);
+				return hash;
+			}
+
+			File blob = getBlob(hash);
+
+			// the blob can not be removed between its publication and the link
+			synchronized (getLock(blob.getName()))
+			{
+				publish(tempFile, blob);
+
+				if (!FileTransfer.link(blob, destination))
+				{
+					LOGGER.debug("copied blob {} to {}, hard links not supported", blob, destination);
+				}
+			}
+
+			return hash;
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * The lock to hold while publishing or linking a blob, or checking it is unreferenced and removing it.
+	 *
+	 * @param blobName the file name of the blob
+	 * @return the lock of the name
+	 */
+	static Object getLock(String blobName)
+	{
+		return LOCKS[(blobName.hashCode() & 0x7fffffff) % LOCKS.length];
+	}
+
+	/**
+	 * Writes a payload to a temporary file, the hash is only known once written.
+	 *
+	 * @return the SHA-256 hash of the payload, in hexadecimal
+	 */
+	private String write(InputStream in, File tempFile) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			in.close();
+			throw new IOException(nsae);
+		}
+
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+
+		try
+		{
+			InputStream digestIn = new DigestInputStream(in, digest);
+			if (codec != null)
+			{
+				OutputStream compressed = StorageCodecs.compress(codec, fileOut);
+				FileTransfer.copy(digestIn, compressed);
+				compressed.close();
+			}
+			else
+			{
+				FileTransfer.copy(digestIn, fileOut);
+			}
+
+			if (fsync)
+			{
+				fileOut.getChannel().force(true);
+			}
+		}
+		finally
+		{
+			fileOut.close();
+			in.close();
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Moves the temporary file to the blob, or refreshes the modification time of the blob already stored so the
+	 * retention does not see it as an old unreferenced blob. Called with the lock of the blob.
+	 */
+	private void publish(File tempFile, File blob) throws IOException
+	{
+		if (blob.exists())
+		{
+			LOGGER.debug("payload {} already stored", blob.getName());
+			if (blob.setLastModified(System.currentTimeMillis()))
+			{
+				return;
+			}
+			if (blob.exists())
+			{
+				throw new IOException("Unable to refresh blob " + blob);
+			}
+			// removed by another process meanwhile, store it again
+		}
+
+		Files.createDirectories(blob.getParentFile().toPath());
+		try
+		{
+			Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException amnse)
+		{
+			Files.move(tempFile.toPath(), blob.toPath());
+		}
+		catch (FileAlreadyExistsException faee)
+		{
+			// stored at the same time by another process
+		}
+	}
+
+	/**
+	 * @param hash the SHA-256 hash of a payload, in hexadecimal
+	 * @return the blob of the payload, existing or not
+	 */
+	public File getBlob(String hash)
+	{
+		String name = (codec != null) ? hash + codec.getExtension() : hash;
+
+		return new File(new File(new File(directory, hash.substring(0, 2)), hash.substring(2, 4)), name);
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		char[] chars = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; i++)
+		{
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+		}
+
+		return new String(chars);
+	}
+}
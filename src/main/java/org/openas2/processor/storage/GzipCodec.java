@@ -0,0 +1,44 @@
+package org.openas2.processor.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openas2.util.FileTransfer;
+
+public class GzipCodec implements StorageCodec
+{
+	public static final String NAME = "gzip";
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public String getExtension()
+	{
+		return ".gz";
+	}
+
+	@Override
+	public boolean matches(byte[] header, int length)
+	{
+		return (length >= 2) && (header[0] == (byte)0x1f) && (header[1] == (byte)0x8b);
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException
+	{
+		return new GZIPOutputStream(out, FileTransfer.BUFFER_SIZE);
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) throws IOException
+	{
+		return new GZIPInputStream(in, FileTransfer.BUFFER_SIZE);
+	}
+}
@@ -29,14 +29,16 @@ public class MDNFileModule extends BaseStorageModule
 			throw new OpenAS2Exception("Message has no MDN");
 		}
 
+		File mdnFile = null;
 		try
 		{
-			File mdnFile = getFile(msg, getParameter(PARAM_FILENAME, true), "");
+			mdnFile = getFile(msg, getParameter(PARAM_FILENAME, true), "");
 			InputStream in = getMDNStream(msg.getMDN());
 			store(mdnFile, in);
 		}
 		catch (IOException ioe)
 		{
+			discard(mdnFile);
 			throw new WrappedException(ioe);
 		}
 	}
@@ -69,6 +71,11 @@ public class MDNFileModule extends BaseStorageModule
 	}
 
 	protected InputStream getMDNStream(MessageMDN mdn) throws IOException
+	{
+		return createMDNStream(mdn);
+	}
+
+	static InputStream createMDNStream(MessageMDN mdn)
 	{
 		StringBuffer mdnBuf = new StringBuffer();
 
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.openas2.DispositionException;
 import org.openas2.OpenAS2Exception;
@@ -33,35 +34,74 @@ public class MessageFileModule extends BaseStorageModule
 	public void handle(String action, Message msg, Map options) throws OpenAS2Exception
 	{
 		// store message content
+		File msgFile = null;
+		Future<File> msgStored;
 		try
 		{
-			File msgFile = getFile(msg, getParameter(PARAM_FILENAME, true), action);
+			msgFile = getFile(msg, getParameter(PARAM_FILENAME, true), action);
 			InputStream in = msg.getData().getInputStream();
-			store(msgFile, in);
-			LOGGER.info("stored message to {}", msgFile.getAbsolutePath() + msg.getLoggingText());
+			msgStored = storeContent(msg, msgFile, in);
 		}
 		catch (Exception e)
 		{
-			throw new DispositionException(new DispositionType("automatic-action", "MDN-sent-automatically",
-					"processed", "Error", "Error storing transaction"), AS2ReceiverModule.DISP_STORAGE_FAILED, e);
+			discard(msgFile);
+			throw storageFailed(e);
 		}
 
+		// headers are written while the content is being stored
 		String headerFilename = getParameter(PARAM_HEADER, false);
+		File headerFile = null;
+		Future<File> headerStored = null;
+		IOException headerError = null;
 
 		if (headerFilename != null)
 		{
 			try
 			{
-				File headerFile = getFile(msg, headerFilename, action);
+				headerFile = getFile(msg, headerFilename, action);
 				InputStream in = getHeaderStream(msg);
-				store(headerFile, in);
-				LOGGER.info("stored headers to {}", headerFile.getAbsolutePath() + msg.getLoggingText());
+				headerStored = storeAsync(headerFile, in);
 			}
 			catch (IOException ioe)
 			{
-				throw new WrappedException(ioe);
+				discard(headerFile);
+				headerError = ioe;
 			}
 		}
+
+		try
+		{
+			StorageWriter.waitFor(msgStored);
+			LOGGER.info("stored message to {}", msgFile.getAbsolutePath() + msg.getLoggingText());
+		}
+		catch (IOException ioe)
+		{
+			throw storageFailed(ioe);
+		}
+
+		try
+		{
+			if (headerStored != null)
+			{
+				StorageWriter.waitFor(headerStored);
+				LOGGER.info("stored headers to {}", headerFile.getAbsolutePath() + msg.getLoggingText());
+			}
+		}
+		catch (IOException ioe)
+		{
+			headerError = ioe;
+		}
+
+		if (headerError != null)
+		{
+			throw new WrappedException(headerError);
+		}
+	}
+
+	private DispositionException storageFailed(Exception e)
+	{
+		return new DispositionException(new DispositionType("automatic-action", "MDN-sent-automatically",
+				"processed", "Error", "Error storing transaction"), AS2ReceiverModule.DISP_STORAGE_FAILED, e);
 	}
 
 	@Override
@@ -95,6 +135,11 @@ public class MessageFileModule extends BaseStorageModule
 	}
 
 	protected InputStream getHeaderStream(Message msg) throws IOException
+	{
+		return createHeaderStream(msg);
+	}
+
+	static InputStream createHeaderStream(Message msg)
 	{
 		StringBuffer headerBuf = new StringBuffer();
 
@@ -0,0 +1,1285 @@
+package org.openas2.processor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.openas2.util.FileTransfer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only message store made of rolling segment files.
+ * <p>
+ * Each record of a segment holds one payload (message content, headers or MDN) of a Message-ID:
+ *
+ * <pre>
+ * int    magic
+ * byte   type, with {@link #COMPRESSED} set if the payload is compressed, or 0 for padding
+ * long   timestamp
+ * short  Message-ID length, then the UTF-8 Message-ID
+ * long   payload length
+ * bytes  payload
+ * int    CRC32 of the payload
+ * </pre>
+ *
+ * A payload is first read, and compressed, into a spool file of the store directory. Only then is the space of the
+ * record reserved at the end of the active segment, so the lock of the store is not held while reading the payload
+ * and concurrent appends write their records side by side. A record that could not be written once reserved is
+ * overwritten by a padding record, skipped when reading the segment.
+ * <p>
+ * Every segment <code>NNNNNNNNNN.seg</code> has an index file <code>NNNNNNNNNN.idx</code> listing its records. The
+ * index files are loaded at startup, and the parts of each segment not covered by an indexed record are scanned, so a
+ * record written just before a crash is recovered and a partial one at the end is truncated. The newest record of a
+ * Message-ID and type wins.
+ * <p>
+ * Segments only grow until they reach the segment size, then a new one is started. {@link #applyRetention(long)}
+ * removes whole the segments whose newest record is older than the retention, by the timestamps of the records rather
+ * than the time the segment was last written. {@link #compact(double)} moves the records still indexed out of segments
+ * that mostly hold overwritten records, keeping their timestamps, and drops the ones older than the last retention.
+ */
+public class SegmentStore
+{
+	public static final byte TYPE_MESSAGE = 1;
+
+	public static final byte TYPE_HEADERS = 2;
+
+	public static final byte TYPE_MDN = 3;
+
+	/** Flag of the type byte of the records whose payload has been compressed by a {@link StorageCodec}. */
+	public static final byte COMPRESSED = 0x40;
+
+	/** Type of the records filling the space reserved for a record that failed. */
+	private static final byte TYPE_PADDING = 0;
+
+	private static final String[] TYPE_NAMES = { "message", "headers", "mdn" };
+
+	private static final int MAGIC = 0x4F415331;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private static final String SPOOL_SUFFIX = ".spool";
+
+	/** Length of a record header without its Message-ID, up to and including the payload length. */
+	private static final int HEADER_LENGTH = 4 + 1 + 8 + 2 + 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentStore.class);
+
+	/** Records in the order their space was reserved in a segment. */
+	private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>()
+	{
+		@Override
+		public int compare(Record r1, Record r2)
+		{
+			return Long.compare(r1.location.offset, r2.location.offset);
+		}
+	};
+
+	private final File directory;
+
+	private final long segmentSize;
+
+	private final boolean fsync;
+
+	private final Map<String, Location[]> index = new HashMap<String, Location[]>();
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	private Segment active;
+
+	private FileChannel activeChannel;
+
+	private DataOutputStream activeIndex;
+
+	/** Timestamp of the last retention, records older than it are not moved by compaction. */
+	private long expiredBefore;
+
+	public SegmentStore(File directory, long segmentSize, boolean fsync) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.fsync = fsync;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + directory);
+		}
+
+		load();
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	public static byte getType(String name)
+	{
+		for (int i = 0; i < TYPE_NAMES.length; i++)
+		{
+			if (TYPE_NAMES[i].equalsIgnoreCase(name))
+			{
+				return (byte)(i + 1);
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown record type: " + name);
+	}
+
+	public static String getTypeName(byte type)
+	{
+		return TYPE_NAMES[type - 1];
+	}
+
+	/**
+	 * Message-IDs are indexed without their angle brackets.
+	 *
+	 * @param messageId the Message-ID, with or without brackets
+	 * @return the key of the Message-ID
+	 */
+	public static String toKey(String messageId)
+	{
+		String key = messageId.trim();
+
+		if (key.startsWith("<") && key.endsWith(">"))
+		{
+			key = key.substring(1, key.length() - 1);
+		}
+
+		return key;
+	}
+
+	/**
+	 * Appends a payload to the active segment. The stream is read until its end and closed.
+	 *
+	 * @param type the type of payload
+	 * @param messageId the Message-ID the payload belongs to
+	 * @param in the payload
+	 * @throws IOException the record could not be written, nothing is kept of it
+	 */
+	public void append(byte type, String messageId, InputStream in) throws IOException
+	{
+		append(type, messageId, in, null);
+	}
+
+	/**
+	 * Appends a payload to the active segment, compressed while written.
+	 *
+	 * @param type the type of payload
+	 * @param messageId the Message-ID the payload belongs to
+	 * @param in the payload
+	 * @param codec the codec compressing the payload, or null to store it as is
+	 * @throws IOException the record could not be written, nothing is kept of it
+	 */
+	public void append(byte type, String messageId, InputStream in, StorageCodec codec) throws IOException
+	{
+		String key = toKey(messageId);
+		byte[] keyBytes = key.getBytes(UTF8);
+		long timestamp = System.currentTimeMillis();
+		File spool = File.createTempFile("append", SPOOL_SUFFIX, directory);
+
+		try
+		{
+			CRC32 crc = new CRC32();
+			long payloadLength;
+			OutputStream spoolOut = new BufferedOutputStream(new FileOutputStream(spool), FileTransfer.BUFFER_SIZE);
+
+			try
+			{
+				try
+				{
+					CountingOutputStream payload = new CountingOutputStream(new CheckedOutputStream(spoolOut, crc));
+					OutputStream target = (codec != null) ? StorageCodecs.compress(codec, payload) : payload;
+					FileTransfer.copy(in, target);
+					target.flush();
+					if (codec != null)
+					{
+						target.close();
+					}
+					payloadLength = payload.count;
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			finally
+			{
+				spoolOut.close();
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + keyBytes.length);
+			header.putInt(MAGIC);
+			header.put((byte)((codec != null) ? (type | COMPRESSED) : type));
+			header.putLong(timestamp);
+			header.putShort((short)keyBytes.length);
+			header.put(keyBytes);
+			header.putLong(payloadLength);
+			header.flip();
+
+			long recordLength = header.remaining() + payloadLength + 4;
+			Segment segment;
+			long offset;
+
+			synchronized (this)
+			{
+				segment = active;
+				offset = segment.size;
+				segment.size += recordLength;
+				segment.pending++;
+			}
+
+			try
+			{
+				writeRecord(segment.number, offset, header, spool, (int)crc.getValue());
+			}
+			catch (IOException ioe)
+			{
+				writePadding(segment.number, offset, recordLength);
+
+				synchronized (this)
+				{
+					segment.pending--;
+				}
+				throw ioe;
+			}
+
+			Location location = new Location(segment.number, offset, offset + header.capacity(), payloadLength,
+					timestamp, codec != null);
+
+			synchronized (this)
+			{
+				segment.pending--;
+				writeIndexEntry(segment, type, key, location);
+				put(type, key, location);
+
+				if ((segment == active) && (active.size >= segmentSize))
+				{
+					roll();
+				}
+			}
+		}
+		finally
+		{
+			spool.delete();
+		}
+	}
+
+	public synchronized boolean contains(String messageId, byte type)
+	{
+		return get(toKey(messageId), type) != null;
+	}
+
+	/**
+	 * Copies a stored payload, decompressed.
+	 *
+	 * @param messageId the Message-ID
+	 * @param type the type of payload
+	 * @param out where to copy the payload
+	 * @return false if nothing of this type is stored for the Message-ID
+	 * @throws IOException the payload could not be read
+	 */
+	public boolean extract(String messageId, byte type, OutputStream out) throws IOException
+	{
+		Location location;
+		FileChannel channel;
+
+		// the segment is opened under the lock, so compaction or retention can not remove it before, and read outside
+		synchronized (this)
+		{
+			location = get(toKey(messageId), type);
+
+			if (location == null)
+			{
+				return false;
+			}
+
+			channel = FileChannel.open(segmentFile(location.segment).toPath(), StandardOpenOption.READ);
+		}
+
+		try
+		{
+			channel.position(location.payloadOffset);
+			if (location.compressed)
+			{
+				InputStream payload = new BoundedInputStream(Channels.newInputStream(channel), location.payloadLength);
+				FileTransfer.copy(StorageCodecs.decompress(payload), out);
+			}
+			else
+			{
+				FileTransfer.copy(Channels.newInputStream(channel), out, location.payloadLength);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the segments, other than the active one, whose newest record is older than a time. The records older
+	 * than this time are then dropped from the segments compacted.
+	 *
+	 * @param olderThan time in milliseconds
+	 * @return the number of segments removed
+	 * @throws IOException a segment could not be removed
+	 */
+	public synchronized int applyRetention(long olderThan) throws IOException
+	{
+		int removed = 0;
+		expiredBefore = olderThan;
+		Iterator<Segment> it = new ArrayList<Segment>(segments.values()).iterator();
+
+		while (it.hasNext())
+		{
+			Segment segment = it.next();
+
+			if ((segment != active) && (segment.pending == 0) && !segment.compacting && (segment.newest < olderThan))
+			{
+				removeIndexEntries(segment.number);
+				deleteSegment(segment);
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Moves the live records of the segments whose live bytes are below a ratio of their size to the active segment,
+	 * then removes these segments. The records older than the last retention are dropped rather than moved. The
+	 * records are copied outside the lock of the store, each one reserved at the end of the active segment like an
+	 * append, so appends go on meanwhile.
+	 *
+	 * @param liveRatio segments with less live bytes than this ratio of their size are compacted
+	 * @return the number of segments compacted
+	 * @throws IOException a segment could not be compacted
+	 */
+	public int compact(double liveRatio) throws IOException
+	{
+		List<Segment> candidates = new ArrayList<Segment>();
+
+		synchronized (this)
+		{
+			for (Segment segment : segments.values())
+			{
+				if ((segment != active) && (segment.pending == 0) && !segment.compacting
+						&& (segment.liveBytes < segment.size * liveRatio))
+				{
+					segment.compacting = true;
+					candidates.add(segment);
+				}
+			}
+		}
+
+		int compacted = 0;
+
+		try
+		{
+			for (Segment segment : candidates)
+			{
+				compact(segment);
+				compacted++;
+			}
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				for (Segment segment : candidates)
+				{
+					segment.compacting = false;
+				}
+			}
+		}
+
+		return compacted;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		closeActive();
+	}
+
+	private void compact(Segment segment) throws IOException
+	{
+		List<Record> live = new ArrayList<Record>();
+		int dropped = 0;
+
+		synchronized (this)
+		{
+			Iterator<Map.Entry<String, Location[]>> it = index.entrySet().iterator();
+
+			while (it.hasNext())
+			{
+				Map.Entry<String, Location[]> entry = it.next();
+				Location[] locations = entry.getValue();
+				boolean empty = true;
+
+				for (int i = 0; i < locations.length; i++)
+				{
+					Location location = locations[i];
+
+					if ((location != null) && (location.segment == segment.number))
+					{
+						if (location.timestamp < expiredBefore)
+						{
+							segment.liveBytes -= location.getEnd() - location.offset;
+							locations[i] = null;
+							dropped++;
+						}
+						else
+						{
+							live.add(new Record((byte)(i + 1), entry.getKey(), location));
+						}
+					}
+
+					empty &= (locations[i] == null);
+				}
+
+				if (empty)
+				{
+					it.remove();
+				}
+			}
+		}
+
+		// the segment is not removed while compacting, the records are read from it outside the lock
+		FileChannel source = FileChannel.open(segmentFile(segment.number).toPath(), StandardOpenOption.READ);
+
+		try
+		{
+			for (Record record : live)
+			{
+				move(source, record);
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+
+		synchronized (this)
+		{
+			if (activeIndex != null)
+			{
+				activeIndex.flush();
+			}
+
+			// every record was moved, or overwritten meanwhile
+			deleteSegment(segment);
+		}
+
+		if (dropped > 0)
+		{
+			LOGGER.debug("dropped {} expired records compacting segment {}", dropped, segmentFile(segment.number));
+		}
+	}
+
+	/**
+	 * Copies a record to space reserved at the end of the active segment, then points the index to the copy unless the
+	 * record was overwritten meanwhile. An overwritten copy is turned into padding, so it is never recovered.
+	 */
+	private void move(FileChannel source, Record record) throws IOException
+	{
+		Location location = record.location;
+		long length = location.getEnd() - location.offset;
+		Segment target;
+		long offset;
+
+		synchronized (this)
+		{
+			if (get(record.key, record.type) != location)
+			{
+				return;
+			}
+
+			target = active;
+			offset = target.size;
+			target.size += length;
+			target.pending++;
+		}
+
+		boolean indexed = false;
+
+		try
+		{
+			FileChannel channel = FileChannel.open(segmentFile(target.number).toPath(), StandardOpenOption.WRITE);
+
+			try
+			{
+				long position = 0;
+				while (position < length)
+				{
+					position += source.transferTo(location.offset + position, length - position,
+							channel.position(offset + position));
+				}
+
+				if (fsync)
+				{
+					channel.force(false);
+				}
+			}
+			finally
+			{
+				channel.close();
+			}
+
+			Location moved = new Location(target.number, offset, offset + (location.payloadOffset - location.offset),
+					location.payloadLength, location.timestamp, location.compressed);
+
+			synchronized (this)
+			{
+				if (get(record.key, record.type) == location)
+				{
+					writeIndexEntry(target, record.type, record.key, moved);
+					put(record.type, record.key, moved);
+					indexed = true;
+				}
+			}
+		}
+		finally
+		{
+			if (!indexed)
+			{
+				writePadding(target.number, offset, length);
+			}
+
+			synchronized (this)
+			{
+				target.pending--;
+
+				if ((target == active) && (active.size >= segmentSize))
+				{
+					roll();
+				}
+			}
+		}
+	}
+
+	private void load() throws IOException
+	{
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SPOOL_SUFFIX);
+			}
+		});
+
+		if (files == null)
+		{
+			throw new IOException("Error getting list of files in directory " + directory);
+		}
+
+		for (int i = 0; i < files.length; i++)
+		{
+			String name = files[i].getName();
+
+			if (name.endsWith(SPOOL_SUFFIX))
+			{
+				// payload of an append interrupted before its record was written
+				files[i].delete();
+				continue;
+			}
+
+			try
+			{
+				int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(number, new Segment(number));
+			}
+			catch (NumberFormatException nfe)
+			{
+				LOGGER.warn("ignoring unexpected file {} in message store", files[i]);
+			}
+		}
+
+		for (Segment segment : segments.values())
+		{
+			loadSegment(segment);
+		}
+
+		if (segments.isEmpty())
+		{
+			segments.put(1, new Segment(1));
+		}
+
+		openActive(segments.lastEntry().getValue());
+
+		LOGGER.info("loaded message store {} with {} segments and {} messages", directory, segments.size(),
+				index.size());
+	}
+
+	private void loadSegment(Segment segment) throws IOException
+	{
+		long end = 0;
+		long length = segmentFile(segment.number).length();
+		File indexFile = indexFile(segment.number);
+		List<Record> records = new ArrayList<Record>();
+		boolean damaged = false;
+
+		// read the index entries written completely
+		if (indexFile.exists())
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+			try
+			{
+				while (true)
+				{
+					int flags = in.read();
+					if (flags < 0)
+					{
+						break;
+					}
+
+					damaged = true;
+					long offset = in.readLong();
+					long payloadOffset = in.readLong();
+					long payloadLength = in.readLong();
+					long timestamp = in.readLong();
+					String key = in.readUTF();
+
+					Location location = new Location(segment.number, offset, payloadOffset, payloadLength, timestamp,
+							(flags & COMPRESSED) != 0);
+					if (location.getEnd() > length)
+					{
+						// the segment lost records the index knows of, trust the segment
+						break;
+					}
+
+					damaged = false;
+					records.add(new Record((byte)(flags & ~COMPRESSED), key, location));
+					end = Math.max(end, location.getEnd());
+				}
+			}
+			catch (EOFException eofe)
+			{
+				// an entry partially written
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		// recover the records written between the indexed ones, or after the last one
+		Collections.sort(records, RECORD_ORDER);
+		List<Record> recovered = new ArrayList<Record>();
+		FileChannel channel = FileChannel.open(segmentFile(segment.number).toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		try
+		{
+			long position = 0;
+
+			for (Record record : records)
+			{
+				if (record.location.offset > position)
+				{
+					long scanned = scan(channel, position, record.location.offset, segment.number, recovered);
+					if (scanned < record.location.offset)
+					{
+						LOGGER.warn("skipping unreadable bytes at {} in segment {}", scanned,
+								segmentFile(segment.number));
+					}
+				}
+				position = Math.max(position, record.location.getEnd());
+			}
+
+			long fileSize = channel.size();
+			position = scan(channel, end, fileSize, segment.number, recovered);
+			if (position < fileSize)
+			{
+				LOGGER.warn("truncating partial record at {} in segment {}", position, segmentFile(segment.number));
+				channel.truncate(position);
+			}
+
+			segment.size = position;
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		// the newest record wins, in the order the space of the records was reserved
+		List<Record> all = new ArrayList<Record>(records);
+		all.addAll(recovered);
+		Collections.sort(all, RECORD_ORDER);
+		for (Record record : all)
+		{
+			put(record.type, record.key, record.location);
+		}
+
+		if (damaged || !recovered.isEmpty())
+		{
+			// append the recovered records to the index, or rewrite it past a damaged entry
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile,
+					!damaged)));
+
+			try
+			{
+				if (damaged)
+				{
+					LOGGER.warn("rewriting damaged index {}", indexFile);
+					for (Record record : records)
+					{
+						writeIndexEntry(out, record.type, record.key, record.location);
+					}
+				}
+
+				for (Record record : recovered)
+				{
+					writeIndexEntry(out, record.type, record.key, record.location);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			LOGGER.info("recovered {} records in segment {}", recovered.size(), segmentFile(segment.number));
+		}
+	}
+
+	/**
+	 * Reads the records of a part of a segment, skipping the padding.
+	 *
+	 * @return the position following the last record read, before the first one not readable
+	 */
+	private long scan(FileChannel channel, long position, long limit, int segmentNumber, List<Record> recovered)
+			throws IOException
+	{
+		while (position < limit)
+		{
+			Record record = readRecord(channel, position, limit, segmentNumber);
+			if (record == null)
+			{
+				break;
+			}
+			if (record.type != TYPE_PADDING)
+			{
+				recovered.add(record);
+			}
+			position = record.location.getEnd();
+		}
+
+		return position;
+	}
+
+	private Record readRecord(FileChannel channel, long position, long fileSize, int segmentNumber)
+			throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 2);
+
+		if ((position + header.capacity() > fileSize) || (channel.read(header, position) < header.capacity()))
+		{
+			return null;
+		}
+
+		header.flip();
+		if (header.getInt() != MAGIC)
+		{
+			return null;
+		}
+
+		byte flags = header.get();
+		byte type = (byte)(flags & ~COMPRESSED);
+		long timestamp = header.getLong();
+		int keyLength = header.getShort() & 0xFFFF;
+
+		ByteBuffer keyAndLength = ByteBuffer.allocate(keyLength + 8);
+		long keyPosition = position + header.capacity();
+		if ((keyPosition + keyAndLength.capacity() > fileSize)
+				|| (channel.read(keyAndLength, keyPosition) < keyAndLength.capacity()))
+		{
+			return null;
+		}
+
+		keyAndLength.flip();
+		byte[] keyBytes = new byte[keyLength];
+		keyAndLength.get(keyBytes);
+		long payloadLength = keyAndLength.getLong();
+		long payloadOffset = keyPosition + keyAndLength.capacity();
+
+		if ((type < TYPE_PADDING) || (type > TYPE_MDN) || (payloadLength < 0)
+				|| (payloadOffset + payloadLength + 4 > fileSize))
+		{
+			return null;
+		}
+
+		if (type == TYPE_PADDING)
+		{
+			// the content of the padding is whatever the failed record left
+			return new Record(type, "", new Location(segmentNumber, position, payloadOffset, payloadLength, timestamp,
+					false));
+		}
+
+		// verify the payload
+		CRC32 crc = new CRC32();
+		ByteBuffer buf = ByteBuffer.allocate(FileTransfer.BUFFER_SIZE);
+		long read = 0;
+
+		while (read < payloadLength)
+		{
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), payloadLength - read));
+			int count = channel.read(buf, payloadOffset + read);
+			if (count <= 0)
+			{
+				return null;
+			}
+			crc.update(buf.array(), 0, count);
+			read += count;
+		}
+
+		ByteBuffer crcValue = ByteBuffer.allocate(4);
+		channel.read(crcValue, payloadOffset + payloadLength);
+		crcValue.flip();
+
+		if (crcValue.getInt() != (int)crc.getValue())
+		{
+			return null;
+		}
+
+		return new Record(type, new String(keyBytes, UTF8),
+				new Location(segmentNumber, position, payloadOffset, payloadLength, timestamp,
+						(flags & COMPRESSED) != 0));
+	}
+
+	/**
+	 * Writes a record in the space reserved for it, through its own channel as the active segment may roll meanwhile.
+	 */
+	private void writeRecord(int number, long offset, ByteBuffer header, File spool, int crc) throws IOException
+	{
+		FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.WRITE);
+
+		try
+		{
+			long position = offset;
+			while (header.hasRemaining())
+			{
+				position += channel.write(header, position);
+			}
+
+			FileChannel source = FileChannel.open(spool.toPath(), StandardOpenOption.READ);
+
+			try
+			{
+				long length = source.size();
+				long copied = 0;
+
+				while (copied < length)
+				{
+					copied += channel.transferFrom(source, position + copied, length - copied);
+				}
+				position += length;
+			}
+			finally
+			{
+				source.close();
+			}
+
+			ByteBuffer crcValue = ByteBuffer.allocate(4);
+			crcValue.putInt(crc).flip();
+			while (crcValue.hasRemaining())
+			{
+				position += channel.write(crcValue, position);
+			}
+
+			if (fsync)
+			{
+				channel.force(false);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Turns the space reserved for a record that could not be written into a padding record.
+	 */
+	private void writePadding(int number, long offset, long length)
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.put(TYPE_PADDING);
+		header.putLong(System.currentTimeMillis());
+		header.putShort((short)0);
+		header.putLong(length - HEADER_LENGTH - 4);
+		header.flip();
+
+		try
+		{
+			FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.WRITE);
+
+			try
+			{
+				channel.write(header, offset);
+				// the segment must cover the whole padding to be read past it
+				channel.write(ByteBuffer.allocate(4), offset + length - 4);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			LOGGER.error("could not write padding at " + offset + " in segment " + segmentFile(number), ioe);
+		}
+	}
+
+	private void roll() throws IOException
+	{
+		closeActive();
+
+		Segment next = new Segment(active.number + 1);
+		segments.put(next.number, next);
+		openActive(next);
+
+		LOGGER.debug("rolled message store {} to segment {}", directory, next.number);
+	}
+
+	private void openActive(Segment segment) throws IOException
+	{
+		active = segment;
+		activeChannel = FileChannel.open(segmentFile(segment.number).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		activeIndex = openIndex(segment.number);
+	}
+
+	private void closeActive() throws IOException
+	{
+		if (activeIndex != null)
+		{
+			activeIndex.close();
+			activeIndex = null;
+		}
+
+		if (activeChannel != null)
+		{
+			if (fsync)
+			{
+				activeChannel.force(true);
+			}
+			activeChannel.close();
+			activeChannel = null;
+		}
+	}
+
+	private DataOutputStream openIndex(int number) throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(number), true)));
+	}
+
+	private void writeIndexEntry(Segment segment, byte type, String key, Location location) throws IOException
+	{
+		if ((segment == active) && (activeIndex != null))
+		{
+			writeIndexEntry(activeIndex, type, key, location);
+			return;
+		}
+
+		// a record reserved before the segment rolled
+		DataOutputStream out = openIndex(segment.number);
+
+		try
+		{
+			writeIndexEntry(out, type, key, location);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void writeIndexEntry(DataOutputStream out, byte type, String key, Location location) throws IOException
+	{
+		out.writeByte(location.compressed ? (type | COMPRESSED) : type);
+		out.writeLong(location.offset);
+		out.writeLong(location.payloadOffset);
+		out.writeLong(location.payloadLength);
+		out.writeLong(location.timestamp);
+		out.writeUTF(key);
+	}
+
+	private Location get(String key, byte type)
+	{
+		Location[] locations = index.get(key);
+
+		return (locations == null) ? null : locations[type - 1];
+	}
+
+	private void put(byte type, String key, Location location)
+	{
+		Location[] locations = index.get(key);
+
+		if (locations == null)
+		{
+			locations = new Location[TYPE_NAMES.length];
+			index.put(key, locations);
+		}
+
+		Location previous = locations[type - 1];
+		if (previous != null)
+		{
+			Segment segment = segments.get(previous.segment);
+			if (segment != null)
+			{
+				segment.liveBytes -= previous.getEnd() - previous.offset;
+			}
+		}
+
+		locations[type - 1] = location;
+
+		Segment segment = segments.get(location.segment);
+		if (segment != null)
+		{
+			segment.liveBytes += location.getEnd() - location.offset;
+			segment.newest = Math.max(segment.newest, location.timestamp);
+		}
+	}
+
+	private void removeIndexEntries(int segmentNumber)
+	{
+		Iterator<Map.Entry<String, Location[]>> it = index.entrySet().iterator();
+
+		while (it.hasNext())
+		{
+			Location[] locations = it.next().getValue();
+			boolean empty = true;
+
+			for (int i = 0; i < locations.length; i++)
+			{
+				if ((locations[i] != null) && (locations[i].segment == segmentNumber))
+				{
+					locations[i] = null;
+				}
+				empty &= (locations[i] == null);
+			}
+
+			if (empty)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	private void deleteSegment(Segment segment) throws IOException
+	{
+		segments.remove(segment.number);
+
+		File segmentFile = segmentFile(segment.number);
+		if (!segmentFile.delete() && segmentFile.exists())
+		{
+			throw new IOException("Unable to delete segment " + segmentFile);
+		}
+
+		indexFile(segment.number).delete();
+
+		LOGGER.info("removed segment {}", segmentFile);
+	}
+
+	private File segmentFile(int number)
+	{
+		return new File(directory, String.format("%010d", number) + SEGMENT_SUFFIX);
+	}
+
+	private File indexFile(int number)
+	{
+		return new File(directory, String.format("%010d", number) + INDEX_SUFFIX);
+	}
+
+	private static final class Segment
+	{
+		private final int number;
+
+		private long size;
+
+		private long liveBytes;
+
+		/** Timestamp of the newest record of the segment. */
+		private long newest;
+
+		/** Records reserved in the segment and still being written. */
+		private int pending;
+
+		/** Set while the live records of the segment are moved out of it. */
+		private boolean compacting;
+
+		Segment(int number)
+		{
+			this.number = number;
+		}
+	}
+
+	private static final class Location
+	{
+		private final int segment;
+
+		private final long offset;
+
+		private final long payloadOffset;
+
+		private final long payloadLength;
+
+		private final long timestamp;
+
+		private final boolean compressed;
+
+		Location(int segment, long offset, long payloadOffset, long payloadLength, long timestamp, boolean compressed)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.payloadOffset = payloadOffset;
+			this.payloadLength = payloadLength;
+			this.timestamp = timestamp;
+			this.compressed = compressed;
+		}
+
+		/** @return the position following the record, after its CRC */
+		long getEnd()
+		{
+			return payloadOffset + payloadLength + 4;
+		}
+	}
+
+	private static final class Record
+	{
+		private final byte type;
+
+		private final String key;
+
+		private final Location location;
+
+		Record(byte type, String key, Location location)
+		{
+			this.type = type;
+			this.key = key;
+			this.location = location;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream
+	{
+		private long count;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	/** Stream of the payload of a record, ending with it. */
+	private static final class BoundedInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length)
+		{
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (remaining <= 0)
+			{
+				return -1;
+			}
+
+			int b = in.read();
+			if (b >= 0)
+			{
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (remaining <= 0)
+			{
+				return -1;
+			}
+
+			int count = in.read(b, off, (int)Math.min(len, remaining));
+			if (count > 0)
+			{
+				remaining -= count;
+			}
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int)Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close()
+		{
+			// the channel is closed by the store
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.openas2.processor.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.openas2.DispositionException;
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.WrappedException;
+import org.openas2.message.Message;
+import org.openas2.params.InvalidParameterException;
+import org.openas2.processor.BaseProcessorModule;
+import org.openas2.processor.receiver.AS2ReceiverModule;
+import org.openas2.util.DispositionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores messages, their headers and MDNs in the rolling segment files of a {@link SegmentStore} rather than one file
+ * each. Everything is indexed by the Message-ID of the message, the MDN of a message included, and can be read back
+ * with the <code>storage extract</code> command.
+ */
+public class SegmentedStorageModule extends BaseProcessorModule implements StorageModule
+{
+	public static final String PARAM_DIR = "dir";
+
+	/** Comma separated storage actions handled by the module, "store,store_mdn" by default. */
+	public static final String PARAM_ACTIONS = "actions";
+
+	public static final String PARAM_PROTOCOL = "protocol";
+
+	/** Size in megabytes a segment grows to before the next one is started. */
+	public static final String PARAM_SEGMENT_SIZE = "segmentsize";
+
+	public static final String PARAM_FSYNC = "fsync";
+
+	/** Name or class name of the {@link StorageCodec} compressing the records, none by default. */
+	public static final String PARAM_COMPRESSION = "compression";
+
+	/** Days records are kept, by their timestamp, 0 to keep them forever. */
+	public static final String PARAM_RETENTION_DAYS = "retentiondays";
+
+	/** Percentage of live records below which a segment is compacted, 0 to never compact. */
+	public static final String PARAM_COMPACT_RATIO = "compactratio";
+
+	/** Minutes between two runs of the retention and compaction. */
+	public static final String PARAM_MAINTENANCE_INTERVAL = "maintenanceinterval";
+
+	public static final String DEFAULT_ACTIONS = DO_STORE + "," + DO_STOREMDN;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64;
+
+	public static final int DEFAULT_COMPACT_RATIO = 50;
+
+	public static final int DEFAULT_MAINTENANCE_INTERVAL = 60;
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedStorageModule.class);
+
+	private final Set<String> actions = new HashSet<String>();
+
+	private SegmentStore store;
+
+	private StorageCodec codec;
+
+	@Override
+	public void init(Session session, Map options) throws OpenAS2Exception
+	{
+		super.init(session, options);
+
+		StringTokenizer actionTokens = new StringTokenizer(getParameter(PARAM_ACTIONS, DEFAULT_ACTIONS), ", ");
+		while (actionTokens.hasMoreTokens())
+		{
+			actions.add(actionTokens.nextToken());
+		}
+
+		codec = StorageCodecs.get(getParameter(PARAM_COMPRESSION, false));
+
+		long segmentSize = getParameterInt(PARAM_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE) * 1024L * 1024L;
+		boolean fsync = Boolean.parseBoolean(getParameter(PARAM_FSYNC, "false"));
+
+		try
+		{
+			store = new SegmentStore(new File(getParameter(PARAM_DIR, true)), segmentSize, fsync);
+		}
+		catch (IOException ioe)
+		{
+			throw new WrappedException(ioe);
+		}
+
+		int retentionDays = getParameterInt(PARAM_RETENTION_DAYS, 0);
+		int compactRatio = getParameterInt(PARAM_COMPACT_RATIO, DEFAULT_COMPACT_RATIO);
+		long interval = getParameterInt(PARAM_MAINTENANCE_INTERVAL, DEFAULT_MAINTENANCE_INTERVAL) * 60000L;
+
+		// the index entries buffered are written before the server exits, rather than recovered at the next start
+		session.addShutdownHook(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					store.close();
+				}
+				catch (IOException ioe)
+				{
+					LOGGER.error("unable to close message store " + store.getDirectory(), ioe);
+				}
+			}
+		});
+
+		if ((interval > 0) && ((retentionDays > 0) || (compactRatio > 0)))
+		{
+			getSession().getScheduler().scheduleWithFixedDelay(getName() + " " + store.getDirectory(),
+					new MaintenanceTask(retentionDays, compactRatio), interval, interval);
+		}
+	}
+
+	@Override
+	public boolean canHandle(String action, Message msg, Map options)
+	{
+		if (!actions.contains(action))
+		{
+			return false;
+		}
+
+		try
+		{
+			String modProtocol = getParameter(PARAM_PROTOCOL, false);
+
+			return (modProtocol == null) || modProtocol.equals(msg.getProtocol());
+		}
+		catch (InvalidParameterException ipe)
+		{
+			return false;
+		}
+	}
+
+	@Override
+	public void handle(String action, Message msg, Map options) throws OpenAS2Exception
+	{
+		String messageId = msg.getMessageID();
+
+		if (messageId == null)
+		{
+			throw new OpenAS2Exception("Message has no Message-ID");
+		}
+
+		try
+		{
+			if (action.equals(DO_STOREMDN))
+			{
+				if (msg.getMDN() == null)
+				{
+					throw new OpenAS2Exception("Message has no MDN");
+				}
+
+				store.append(SegmentStore.TYPE_MDN, messageId, MDNFileModule.createMDNStream(msg.getMDN()),
+						codec);
+				LOGGER.info("stored MDN to {}", store.getDirectory() + msg.getLoggingText());
+			}
+			else
+			{
+				try
+				{
+					store.append(SegmentStore.TYPE_MESSAGE, messageId, msg.getData().getInputStream(), codec);
+				}
+				catch (Exception e)
+				{
+					if (action.equals(DO_STORE))
+					{
+						throw new DispositionException(new DispositionType("automatic-action",
+								"MDN-sent-automatically", "processed", "Error", "Error storing transaction"),
+								AS2ReceiverModule.DISP_STORAGE_FAILED, e);
+					}
+
+					throw e;
+				}
+
+				store.append(SegmentStore.TYPE_HEADERS, messageId, MessageFileModule.createHeaderStream(msg), codec);
+				LOGGER.info("stored message to {}", store.getDirectory() + msg.getLoggingText());
+			}
+		}
+		catch (OpenAS2Exception oae)
+		{
+			throw oae;
+		}
+		catch (Exception e)
+		{
+			throw new WrappedException(e);
+		}
+	}
+
+	/**
+	 * @param messageId the Message-ID, with or without angle brackets
+	 * @param type one of the record types of {@link SegmentStore}
+	 * @return true if the module has such a record
+	 */
+	public boolean contains(String messageId, byte type)
+	{
+		return store.contains(messageId, type);
+	}
+
+	/**
+	 * @param messageId the Message-ID, with or without angle brackets
+	 * @param type one of the record types of {@link SegmentStore}
+	 * @param out where to copy the record, decompressed
+	 * @return false if the module has no such record
+	 * @throws IOException the record could not be read
+	 */
+	public boolean extract(String messageId, byte type, OutputStream out) throws IOException
+	{
+		return store.extract(messageId, type, out);
+	}
+
+	private class MaintenanceTask implements Runnable
+	{
+		private final int retentionDays;
+
+		private final int compactRatio;
+
+		MaintenanceTask(int retentionDays, int compactRatio)
+		{
+			this.retentionDays = retentionDays;
+			this.compactRatio = compactRatio;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (retentionDays > 0)
+				{
+					int removed = store.applyRetention(System.currentTimeMillis() - retentionDays * 86400000L);
+					if (removed > 0)
+					{
+						LOGGER.info("removed {} expired segments from {}", removed, store.getDirectory());
+					}
+				}
+
+				if (compactRatio > 0)
+				{
+					int compacted = store.compact(compactRatio / 100.0);
+					if (compacted > 0)
+					{
+						LOGGER.info("compacted {} segments of {}", compacted, store.getDirectory());
+					}
+				}
+			}
+			catch (IOException ioe)
+			{
+				LOGGER.error("maintenance of message store " + store.getDirectory() + " failed", ioe);
+			}
+		}
+	}
+}
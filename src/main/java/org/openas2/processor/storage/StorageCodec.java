@@ -0,0 +1,44 @@
+package org.openas2.processor.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of stored files, selected with the <code>compression</code> parameter of the storage modules. Codecs
+ * other than the ones of {@link StorageCodecs} are configured by class name and need a public no-argument
+ * constructor.
+ */
+public interface StorageCodec
+{
+	/**
+	 * @return the name the codec is configured with
+	 */
+	String getName();
+
+	/**
+	 * @return the extension added to the names of the files it compressed, with its dot
+	 */
+	String getExtension();
+
+	/**
+	 * @param header the first {@link StorageCodecs#MAGIC_LENGTH} bytes of a stream
+	 * @param length the number of bytes of the header read, less for a shorter stream
+	 * @return true if the stream has been compressed by this codec
+	 */
+	boolean matches(byte[] header, int length);
+
+	/**
+	 * @param out the stream receiving the compressed data
+	 * @return a stream compressing the data written to it, closing it finishes the compressed data and closes out
+	 * @throws IOException the compressed stream could not be started
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * @param in a compressed stream
+	 * @return a stream of the decompressed data
+	 * @throws IOException the compressed stream is not valid
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,190 @@
+package org.openas2.processor.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.WrappedException;
+
+/**
+ * Registry of the {@link StorageCodec}s, and the streams reading stored files whether they are compressed or not.
+ */
+public final class StorageCodecs
+{
+	/** Number of bytes read to recognize a compressed stream. */
+	public static final int MAGIC_LENGTH = 8;
+
+	private static final Map<String, StorageCodec> CODECS = new ConcurrentHashMap<String, StorageCodec>();
+
+	static
+	{
+		register(new GzipCodec());
+	}
+
+	private StorageCodecs()
+	{
+	}
+
+	public static void register(StorageCodec codec)
+	{
+		CODECS.put(codec.getName(), codec);
+	}
+
+	/**
+	 * @param name the name of a registered codec, or the class name of a codec to register
+	 * @return the codec, null for a null name, an empty name or "none"
+	 * @throws OpenAS2Exception no such codec
+	 */
+	public static StorageCodec get(String name) throws OpenAS2Exception
+	{
+		if ((name == null) || (name.length() == 0) || name.equalsIgnoreCase("none"))
+		{
+			return null;
+		}
+
+		StorageCodec codec = CODECS.get(name);
+
+		if (codec == null)
+		{
+			try
+			{
+				Class<?> codecClass = Class.forName(name);
+
+				if (!StorageCodec.class.isAssignableFrom(codecClass))
+				{
+					throw new OpenAS2Exception("Class " + name + " must implement " + StorageCodec.class.getName());
+				}
+
+				codec = (StorageCodec)codecClass.getConstructor().newInstance();
+			}
+			catch (OpenAS2Exception oae)
+			{
+				throw oae;
+			}
+			catch (Exception e)
+			{
+				throw new WrappedException("Error creating storage codec: " + name, e);
+			}
+
+			CODECS.put(name, codec);
+		}
+
+		return codec;
+	}
+
+	/**
+	 * @param file a stored file
+	 * @return the codec that compressed the file, recognized by its extension, or null
+	 */
+	public static StorageCodec forFile(File file)
+	{
+		String name = file.getName();
+
+		for (StorageCodec codec : CODECS.values())
+		{
+			if (name.endsWith(codec.getExtension()))
+			{
+				return codec;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Opens a stored file, decompressing it if its extension is the one of a codec.
+	 * 
+	 * @param file the stored file
+	 * @return the content of the file
+	 * @throws IOException the file could not be opened
+	 */
+	public static InputStream open(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		StorageCodec codec = forFile(file);
+
+		if (codec == null)
+		{
+			return in;
+		}
+
+		try
+		{
+			return codec.decompress(new BufferedInputStream(in));
+		}
+		catch (IOException ioe)
+		{
+			in.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Decompresses a stream known to be compressed, with the codec recognized from its first bytes.
+	 * 
+	 * @param in the compressed stream
+	 * @return the decompressed stream
+	 * @throws IOException no codec recognizes the stream
+	 */
+	public static InputStream decompress(InputStream in) throws IOException
+	{
+		BufferedInputStream buffered = new BufferedInputStream(in);
+		byte[] header = new byte[MAGIC_LENGTH];
+		int length = 0;
+
+		buffered.mark(MAGIC_LENGTH);
+		while (length < MAGIC_LENGTH)
+		{
+			int count = buffered.read(header, length, MAGIC_LENGTH - length);
+			if (count < 0)
+			{
+				break;
+			}
+			length += count;
+		}
+		buffered.reset();
+
+		for (StorageCodec codec : CODECS.values())
+		{
+			if (codec.matches(header, length))
+			{
+				return codec.decompress(buffered);
+			}
+		}
+
+		throw new IOException("Unknown compression of stored data");
+	}
+
+	/**
+	 * Compresses into a stream that stays open: closing the returned stream only finishes the compressed data.
+	 * 
+	 * @param codec the codec
+	 * @param out the stream receiving the compressed data
+	 * @return the compressing stream
+	 * @throws IOException the compressed stream could not be started
+	 */
+	public static OutputStream compress(StorageCodec codec, OutputStream out) throws IOException
+	{
+		return codec.compress(new FilterOutputStream(out)
+		{
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				flush();
+			}
+		});
+	}
+}
@@ -0,0 +1,613 @@
+package org.openas2.processor.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.params.InvalidParameterException;
+import org.openas2.processor.BaseActiveModule;
+import org.openas2.util.TaskScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes old files from a storage directory (messages, headers, MDNs, archives, pending or error files), so it does
+ * not grow until the disk is full. Files are removed once older than a number of days, and the oldest ones are removed
+ * while the directory holds more than a total size or number of files.
+ * <p>
+ * The directory and its subdirectories are walked with {@link DirectoryStream}s, one entry at a time, and at most
+ * <code>iops</code> files are examined or removed per second so the cleanup does not compete with the traffic for the
+ * disk. The walks run on a thread of the module, the shared scheduler only starts them. The size and number of files
+ * are enforced with a first walk summing the files by hour of last modification, giving the hours whose files must
+ * all go and the hour where the limits are reached, then a second walk removing the former and collecting the files
+ * of the latter, removed oldest first until the directory is within the limits. Files modified within the grace
+ * period are never removed for the limits, so the files being stored are not.
+ * <p>
+ * A directory of a {@link BlobStore} is configured with <code>blobs="true"</code>: its blobs are removed once no stored
+ * file links to them any more, and they have not been stored again for an hour. The check is repeated under the lock
+ * the blob store holds to publish and link a blob, so a blob is not removed while being linked.
+ */
+public class StorageRetentionModule extends BaseActiveModule
+{
+	public static final String PARAM_DIR = "dir";
+
+	/** Days after which a file is removed, 0 by default for no limit. */
+	public static final String PARAM_MAX_AGE = "maxage";
+
+	/** Total size in megabytes above which the oldest files are removed, 0 by default for no limit. */
+	public static final String PARAM_MAX_SIZE = "maxsize";
+
+	/** Number of files above which the oldest files are removed, 0 by default for no limit. */
+	public static final String PARAM_MAX_COUNT = "maxcount";
+
+	/** Minutes between two runs. */
+	public static final String PARAM_INTERVAL = "interval";
+
+	/** Files examined or removed per second. */
+	public static final String PARAM_IOPS = "iops";
+
+	/** "true" if the directory is the directory of a {@link BlobStore}. */
+	public static final String PARAM_BLOBS = "blobs";
+
+	/** Minutes during which a file just modified is kept whatever the size and number of files. */
+	public static final String PARAM_GRACE = "grace";
+
+	public static final int DEFAULT_INTERVAL = 60;
+
+	public static final int DEFAULT_GRACE = 60;
+
+	public static final int DEFAULT_IOPS = 200;
+
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	private static final long DAY = 24 * HOUR;
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(StorageRetentionModule.class);
+
+	private Path directory;
+
+	private long maxAge;
+
+	private long maxSize;
+
+	private long maxCount;
+
+	private int iops;
+
+	private boolean blobs;
+
+	private long grace;
+
+	private TaskScheduler.ScheduledTask task;
+
+	/** Thread walking the directory, so the I/O budget does not hold a thread of the shared scheduler. */
+	private ExecutorService walker;
+
+	/** Set while a cleanup is queued or running. */
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile boolean stopping;
+
+	/** Start of the current second of the I/O budget, and the operations done in it. */
+	private long budgetStart;
+
+	private int budgetUsed;
+
+	@Override
+	public void init(Session session, Map options) throws OpenAS2Exception
+	{
+		super.init(session, options);
+
+		directory = Paths.get(getParameter(PARAM_DIR, true));
+		maxAge = getParameterInt(PARAM_MAX_AGE, 0) * DAY;
+		maxSize = getParameterInt(PARAM_MAX_SIZE, 0) * 1024L * 1024L;
+		maxCount = getParameterInt(PARAM_MAX_COUNT, 0);
+		iops = getParameterInt(PARAM_IOPS, DEFAULT_IOPS);
+		blobs = Boolean.parseBoolean(getParameter(PARAM_BLOBS, "false"));
+		grace = getParameterInt(PARAM_GRACE, DEFAULT_GRACE) * 60000L;
+
+		if (iops <= 0)
+		{
+			throw new InvalidParameterException("Must be positive", this, PARAM_IOPS, Integer.toString(iops));
+		}
+	}
+
+	@Override
+	public void doStart() throws OpenAS2Exception
+	{
+		long interval = getParameterInt(PARAM_INTERVAL, DEFAULT_INTERVAL) * 60000L;
+
+		stopping = false;
+		final String name = getName();
+		walker = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		task = getSession().getScheduler().scheduleWithFixedDelay(getName(), new RetentionTask(), interval, interval);
+	}
+
+	@Override
+	public void doStop() throws OpenAS2Exception
+	{
+		stopping = true;
+
+		if (task != null)
+		{
+			task.cancel();
+			task = null;
+		}
+
+		if (walker != null)
+		{
+			// the walk in progress sees stopping and ends
+			walker.shutdown();
+			walker = null;
+		}
+	}
+
+	/**
+	 * Applies the retention policy to the directory once.
+	 *
+	 * @throws IOException the directory could not be walked
+	 */
+	public void enforce() throws IOException
+	{
+		if (!Files.isDirectory(directory))
+		{
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		long graceCutoff = start - grace;
+		Pass pass = new Pass((maxAge > 0) ? Math.min(start - maxAge, graceCutoff) : 0, graceCutoff);
+
+		walk(directory, pass);
+
+		if (!stopping && !blobs
+				&& (((maxSize > 0) && (pass.size > maxSize)) || ((maxCount > 0) && (pass.count > maxCount))))
+		{
+			LimitPass limitPass = pass.planLimits(maxSize, maxCount);
+			walk(directory, limitPass);
+			limitPass.removeOldest();
+			pass.removed += limitPass.removed;
+			pass.removedSize += limitPass.removedSize;
+
+			if (!stopping && !limitPass.isWithinLimits())
+			{
+				LOGGER.warn("{} is still above its limits, its other files were modified in the last {} minutes",
+						directory, grace / 60000L);
+			}
+		}
+
+		if (pass.removed > 0)
+		{
+			LOGGER.info("removed {} files, {} bytes, from {} in {} ms", pass.removed, pass.removedSize, directory,
+					System.currentTimeMillis() - start);
+		}
+	}
+
+	private void walk(Path dir, Pass pass) throws IOException
+	{
+		DirectoryStream<Path> entries;
+		try
+		{
+			entries = Files.newDirectoryStream(dir);
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			return;
+		}
+
+		try
+		{
+			for (Path entry : entries)
+			{
+				if (stopping)
+				{
+					return;
+				}
+
+				acquire();
+
+				BasicFileAttributes attrs;
+				try
+				{
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				}
+				catch (NoSuchFileException nsfe)
+				{
+					continue;
+				}
+
+				if (attrs.isDirectory())
+				{
+					walk(entry, pass);
+					removeIfEmpty(entry, attrs, pass);
+				}
+				else if (attrs.isRegularFile())
+				{
+					pass.visit(entry, attrs);
+				}
+			}
+		}
+		finally
+		{
+			entries.close();
+		}
+	}
+
+	private void removeIfEmpty(Path dir, BasicFileAttributes attrs, Pass pass) throws IOException
+	{
+		// the dated directories of the file names empty out, the shard directories are kept while in use
+		if (attrs.lastModifiedTime().toMillis() >= pass.cutoff)
+		{
+			return;
+		}
+
+		DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+		boolean empty;
+		try
+		{
+			empty = !entries.iterator().hasNext();
+		}
+		finally
+		{
+			entries.close();
+		}
+
+		if (empty)
+		{
+			acquire();
+			try
+			{
+				Files.delete(dir);
+			}
+			catch (IOException ioe)
+			{
+				// a file has just been stored in it
+				LOGGER.trace("directory {} not removed", dir, ioe);
+			}
+		}
+	}
+
+	/**
+	 * Waits while the operations done in the current second exceed the budget.
+	 */
+	private void acquire()
+	{
+		long now = System.currentTimeMillis();
+
+		if (now - budgetStart >= 1000)
+		{
+			budgetStart = now;
+			budgetUsed = 0;
+		}
+		else if (budgetUsed >= iops)
+		{
+			try
+			{
+				Thread.sleep(1000 - (now - budgetStart));
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				stopping = true;
+			}
+			budgetStart = System.currentTimeMillis();
+			budgetUsed = 0;
+		}
+
+		budgetUsed++;
+	}
+
+	/**
+	 * Removes a blob unless it has been linked, or stored again, since it was examined. The storage modules publish and
+	 * link blobs holding the same lock.
+	 *
+	 * @return true if removed
+	 */
+	private boolean removeBlob(Path blob) throws IOException
+	{
+		synchronized (BlobStore.getLock(blob.getFileName().toString()))
+		{
+			try
+			{
+				if ((Files.getLastModifiedTime(blob, LinkOption.NOFOLLOW_LINKS).toMillis() >= System.currentTimeMillis()
+						- HOUR) || !isUnreferenced(blob))
+				{
+					return false;
+				}
+			}
+			catch (NoSuchFileException nsfe)
+			{
+				return false;
+			}
+
+			return Files.deleteIfExists(blob);
+		}
+	}
+
+	private boolean isUnreferenced(Path blob) throws IOException
+	{
+		try
+		{
+			return ((Number)Files.getAttribute(blob, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() <= 1;
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			// the stored files are copies of the blobs, the blobs are never removed
+			return false;
+		}
+	}
+
+	/**
+	 * One walk of the directory, removing the files modified before a time and summing the others.
+	 */
+	private class Pass
+	{
+		protected final long cutoff;
+
+		/** Time after which the files are in their grace period. */
+		protected final long graceCutoff;
+
+		private long count;
+
+		private long size;
+
+		protected int removed;
+
+		protected long removedSize;
+
+		/** Number and size of the files kept and out of their grace period, by hour of last modification. */
+		private final TreeMap<Long, long[]> hours = new TreeMap<Long, long[]>();
+
+		Pass(long cutoff, long graceCutoff)
+		{
+			this.cutoff = cutoff;
+			this.graceCutoff = graceCutoff;
+		}
+
+		void visit(Path file, BasicFileAttributes attrs) throws IOException
+		{
+			long modified = attrs.lastModifiedTime().toMillis();
+			boolean remove;
+
+			if (blobs)
+			{
+				// give the storage modules time to link a blob just written
+				remove = (modified < System.currentTimeMillis() - HOUR) && isUnreferenced(file);
+			}
+			else
+			{
+				remove = modified < cutoff;
+			}
+
+			if (remove)
+			{
+				acquire();
+				if (blobs ? removeBlob(file) : Files.deleteIfExists(file))
+				{
+					removed++;
+					removedSize += attrs.size();
+				}
+				return;
+			}
+
+			count++;
+			size += attrs.size();
+
+			if (modified >= graceCutoff)
+			{
+				return;
+			}
+
+			Long hour = modified / HOUR;
+			long[] sums = hours.get(hour);
+			if (sums == null)
+			{
+				sums = new long[2];
+				hours.put(hour, sums);
+			}
+			sums[0]++;
+			sums[1] += attrs.size();
+		}
+
+		/**
+		 * @return the walk removing the oldest files out of their grace period until the directory is within the limits
+		 */
+		LimitPass planLimits(long maxSize, long maxCount)
+		{
+			long excessCount = (maxCount > 0) ? Math.max(0, count - maxCount) : 0;
+			long excessSize = (maxSize > 0) ? Math.max(0, size - maxSize) : 0;
+			long remainingCount = excessCount;
+			long remainingSize = excessSize;
+
+			for (Map.Entry<Long, long[]> hour : hours.entrySet())
+			{
+				long[] sums = hour.getValue();
+
+				if ((sums[0] >= remainingCount) && (sums[1] >= remainingSize))
+				{
+					// the limits are reached within this hour
+					return new LimitPass(hour.getKey(), excessCount, excessSize, graceCutoff);
+				}
+
+				remainingCount -= sums[0];
+				remainingSize -= sums[1];
+			}
+
+			// even without all the files out of their grace period the directory is above the limits
+			return new LimitPass(Long.MAX_VALUE, excessCount, excessSize, graceCutoff);
+		}
+	}
+
+	/**
+	 * Walk removing the files of the hours before the hour where the limits are reached, and collecting the files of
+	 * that hour to remove the oldest ones.
+	 */
+	private class LimitPass extends Pass
+	{
+		private final long lastHour;
+
+		private long excessCount;
+
+		private long excessSize;
+
+		private final List<Candidate> candidates = new ArrayList<Candidate>();
+
+		LimitPass(long lastHour, long excessCount, long excessSize, long graceCutoff)
+		{
+			super((lastHour == Long.MAX_VALUE) ? graceCutoff : Math.min(lastHour * HOUR, graceCutoff), graceCutoff);
+			this.lastHour = lastHour;
+			this.excessCount = excessCount;
+			this.excessSize = excessSize;
+		}
+
+		@Override
+		void visit(Path file, BasicFileAttributes attrs) throws IOException
+		{
+			long modified = attrs.lastModifiedTime().toMillis();
+
+			if (modified >= graceCutoff)
+			{
+				return;
+			}
+
+			long hour = modified / HOUR;
+			if (hour < lastHour)
+			{
+				remove(file, attrs.size());
+			}
+			else if (hour == lastHour)
+			{
+				candidates.add(new Candidate(file, modified, attrs.size()));
+			}
+		}
+
+		/**
+		 * Removes the files of the last hour, oldest first, until the directory is within the limits.
+		 */
+		void removeOldest() throws IOException
+		{
+			Collections.sort(candidates, new Comparator<Candidate>()
+			{
+				@Override
+				public int compare(Candidate c1, Candidate c2)
+				{
+					return Long.compare(c1.modified, c2.modified);
+				}
+			});
+
+			for (Candidate candidate : candidates)
+			{
+				if (stopping || isWithinLimits())
+				{
+					return;
+				}
+				remove(candidate.file, candidate.size);
+			}
+		}
+
+		boolean isWithinLimits()
+		{
+			return (excessCount <= 0) && (excessSize <= 0);
+		}
+
+		private void remove(Path file, long fileSize) throws IOException
+		{
+			acquire();
+			if (Files.deleteIfExists(file))
+			{
+				removed++;
+				removedSize += fileSize;
+			}
+			// a file removed meanwhile no longer counts either
+			excessCount--;
+			excessSize -= fileSize;
+		}
+	}
+
+	private static final class Candidate
+	{
+		private final Path file;
+
+		private final long modified;
+
+		private final long size;
+
+		Candidate(Path file, long modified, long size)
+		{
+			this.file = file;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	private class RetentionTask implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			ExecutorService executor = walker;
+
+			if ((executor == null) || !running.compareAndSet(false, true))
+			{
+				// the previous cleanup is still running
+				return;
+			}
+
+			try
+			{
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							enforce();
+						}
+						catch (IOException ioe)
+						{
+							LOGGER.error("retention of " + directory + " failed", ioe);
+						}
+						finally
+						{
+							running.set(false);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException ree)
+			{
+				// stopped
+				running.set(false);
+			}
+		}
+	}
+}
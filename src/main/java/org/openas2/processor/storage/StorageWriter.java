@@ -0,0 +1,519 @@
+package org.openas2.processor.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openas2.util.IOUtilOld;
+import org.openas2.util.UniqueFileAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes storage files on a small pool of writer threads fed by a bounded queue.
+ * <p>
+ * When fsync is enabled, written files are handed to a single commit thread which takes every file waiting at that
+ * time as one group: each file is forced to disk, moved from its temporary location, then each distinct directory is
+ * forced once for the whole group. A write is complete, and its future done, only once its group is committed. When the
+ * queue is full the calling thread writes the file itself.
+ * <p>
+ * The threads are daemons: {@link #shutdown()} must be called for the queued files to be written before the server
+ * exits.
+ */
+public class StorageWriter
+{
+	private static final int MAX_GROUP_SIZE = 256;
+
+	/** Milliseconds {@link #shutdown()} waits for the queued files to be written, then committed. */
+	public static final long SHUTDOWN_TIMEOUT = 60 * 1000;
+
+	/** Queued after the last file to commit, stops the commit thread. */
+	private static final PendingWrite STOP = new PendingWrite(null, null, null, null, null);
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(StorageWriter.class);
+
+	private final ThreadPoolExecutor writers;
+
+	private final BlockingQueue<PendingWrite> commits = new LinkedBlockingQueue<PendingWrite>();
+
+	private final boolean fsync;
+
+	private final Thread committer;
+
+	private volatile boolean stopped;
+
+	public StorageWriter(final String name, int writerCount, int queueSize, boolean fsync)
+	{
+		this.fsync = fsync;
+
+		ThreadFactory threadFactory = new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-writer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		writers = new ThreadPoolExecutor(writerCount, writerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, new RejectedExecutionHandler()
+				{
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+					{
+						if (executor.isShutdown())
+						{
+							((PendingWrite)r).complete(new IOException("Storage writer stopped"));
+						}
+						else
+						{
+							// back pressure, the caller writes the file itself
+							r.run();
+						}
+					}
+				});
+
+		if (fsync)
+		{
+			committer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					commitLoop();
+				}
+			}, name + "-commit");
+			committer.setDaemon(true);
+			committer.start();
+		}
+		else
+		{
+			committer = null;
+		}
+	}
+
+	/**
+	 * Queues the storage of a stream. The stream is read and closed by a writer thread.
+	 * 
+	 * @param destination the final file
+	 * @param tempFile a file to write first and move to the destination once durable, or null to write the destination
+	 *        directly
+	 * @param in the data to store
+	 * @return a future giving the destination once the data is durably stored
+	 */
+	public Future<File> submit(File destination, File tempFile, InputStream in)
+	{
+		return submit(destination, tempFile, in, null);
+	}
+
+	/**
+	 * Queues the storage of a stream, compressed by the writer thread.
+	 * 
+	 * @param destination the final file
+	 * @param tempFile a file to write first, or null
+	 * @param in the data to store
+	 * @param codec the codec compressing the data, or null to store it as is
+	 * @return a future giving the destination once the data is durably stored
+	 */
+	public Future<File> submit(File destination, File tempFile, InputStream in, StorageCodec codec)
+	{
+		PendingWrite pending = new PendingWrite(this, destination, tempFile, in, codec);
+		writers.execute(pending);
+		return pending;
+	}
+
+	/**
+	 * Stops the writer once the queued files are written and committed, waiting at most {@link #SHUTDOWN_TIMEOUT}
+	 * milliseconds for each. The files not stored by then fail.
+	 */
+	public void shutdown()
+	{
+		writers.shutdown();
+
+		try
+		{
+			if (!writers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+			{
+				List<Runnable> dropped = writers.shutdownNow();
+				for (Runnable r : dropped)
+				{
+					((PendingWrite)r).complete(new IOException("Storage writer stopped"));
+				}
+				LOGGER.warn("{} files queued for storage were not written before shutdown", dropped.size());
+			}
+
+			if (committer != null)
+			{
+				// after the files written, the writers are stopped
+				commits.add(STOP);
+				committer.join(SHUTDOWN_TIMEOUT);
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if ((committer != null) && committer.isAlive())
+		{
+			LOGGER.warn("stored files not committed before shutdown");
+			committer.interrupt();
+		}
+	}
+
+	/**
+	 * Waits for a storage future and unwraps its failure.
+	 * 
+	 * @param future the storage future
+	 * @return the stored file
+	 * @throws IOException the storage failed or the wait was interrupted
+	 */
+	public static File waitFor(Future<File> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException ee)
+		{
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			throw new IOException(cause);
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for storage", ie);
+		}
+	}
+
+	/**
+	 * Returns an already completed storage future, for files written synchronously.
+	 * 
+	 * @param file the stored file
+	 * @return the completed future
+	 */
+	public static Future<File> completed(File file)
+	{
+		PendingWrite pending = new PendingWrite(null, file, null, null, null);
+		pending.complete(null);
+		return pending;
+	}
+
+	private void commitLoop()
+	{
+		List<PendingWrite> group = new ArrayList<PendingWrite>();
+
+		boolean stop = false;
+		while (!stop && !Thread.currentThread().isInterrupted())
+		{
+			try
+			{
+				group.add(commits.take());
+			}
+			catch (InterruptedException ie)
+			{
+				break;
+			}
+
+			commits.drainTo(group, MAX_GROUP_SIZE - 1);
+			stop = group.remove(STOP);
+			if (!group.isEmpty())
+			{
+				commit(group);
+			}
+			group.clear();
+		}
+
+		// never leave a caller waiting
+		stopped = true;
+		commits.drainTo(group);
+		group.remove(STOP);
+		for (PendingWrite pending : group)
+		{
+			pending.complete(new IOException("Storage writer stopped"));
+		}
+	}
+
+	private void commit(List<PendingWrite> group)
+	{
+		Set<File> directories = new LinkedHashSet<File>();
+
+		for (PendingWrite pending : group)
+		{
+			try
+			{
+				pending.force();
+				pending.moveToDestination();
+				directories.add(pending.destination.getAbsoluteFile().getParentFile());
+			}
+			catch (IOException ioe)
+			{
+				pending.complete(ioe);
+			}
+		}
+
+		for (File directory : directories)
+		{
+			forceDirectory(directory);
+		}
+
+		for (PendingWrite pending : group)
+		{
+			pending.complete(null);
+		}
+
+		LOGGER.debug("committed {} stored files in {} directories", group.size(), directories.size());
+	}
+
+	private static void forceDirectory(File directory)
+	{
+		try
+		{
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try
+			{
+				channel.force(true);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			// not every platform can open or force a directory, the file itself has been forced
+			LOGGER.trace("unable to force directory {}", directory, ioe);
+		}
+	}
+
+	private static final class PendingWrite implements Runnable, Future<File>
+	{
+		private final StorageWriter owner;
+
+		private final File destination;
+
+		private final File tempFile;
+
+		private final InputStream in;
+
+		private final StorageCodec codec;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		private FileOutputStream out;
+
+		private volatile IOException failure;
+
+		PendingWrite(StorageWriter owner, File destination, File tempFile, InputStream in, StorageCodec codec)
+		{
+			this.owner = owner;
+			this.destination = destination;
+			this.tempFile = tempFile;
+			this.in = in;
+			this.codec = codec;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				try
+				{
+					out = new FileOutputStream((tempFile != null) ? tempFile : destination);
+					if (codec != null)
+					{
+						// the file stays open to be forced
+						OutputStream compressed = StorageCodecs.compress(codec, out);
+						IOUtilOld.copy(in, compressed);
+						compressed.close();
+					}
+					else
+					{
+						IOUtilOld.copy(in, out);
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+
+				if (owner.fsync)
+				{
+					owner.commits.add(this);
+					if (owner.stopped && owner.commits.remove(this))
+					{
+						// the commit thread has stopped meanwhile
+						complete(new IOException("Storage writer stopped"));
+					}
+				}
+				else
+				{
+					close();
+					moveToDestination();
+					complete(null);
+				}
+			}
+			catch (IOException ioe)
+			{
+				complete(ioe);
+			}
+		}
+
+		void force() throws IOException
+		{
+			try
+			{
+				out.getChannel().force(true);
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+		void moveToDestination() throws IOException
+		{
+			if (tempFile == null)
+			{
+				return;
+			}
+
+			try
+			{
+				// the name of the destination has been reserved
+				Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException amnse)
+			{
+				Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		void complete(IOException ioe)
+		{
+			// a file failing its commit is completed once, not again with its group
+			if (!completed.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			if (ioe != null)
+			{
+				failure = ioe;
+				try
+				{
+					close();
+				}
+				catch (IOException closeError)
+				{
+					LOGGER.trace("unable to close {}", destination, closeError);
+				}
+
+				if (owner != null)
+				{
+					// no empty or partial file is left
+					((tempFile != null) ? tempFile : destination).delete();
+				}
+			}
+
+			if ((owner != null) && (tempFile != null))
+			{
+				UniqueFileAllocator.release(destination);
+			}
+
+			done.countDown();
+		}
+
+		private void close() throws IOException
+		{
+			if (out != null)
+			{
+				FileOutputStream stream = out;
+				out = null;
+				stream.close();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isDone()
+		{
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public File get() throws InterruptedException, ExecutionException
+		{
+			done.await();
+			return result();
+		}
+
+		@Override
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException
+		{
+			if (!done.await(timeout, unit))
+			{
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private File result() throws ExecutionException
+		{
+			if (failure != null)
+			{
+				throw new ExecutionException(failure);
+			}
+			return destination;
+		}
+	}
+}
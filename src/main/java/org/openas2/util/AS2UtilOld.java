@@ -52,7 +52,7 @@ public class AS2UtilOld
         AS2MessageMDN mdn = new AS2MessageMDN(msg);
         mdn.setHeader("AS2-Version", "1.1");
         // RFC2822 format: Wed, 04 Mar 2009 10:59:17 +0100
-        mdn.setHeader("Date", DateUtil.formatDate("EEE, dd MMM yyyy HH:mm:ss Z"));
+        mdn.setHeader("Date", CachedDateFormat.HTTP_DATE.format());
         mdn.setHeader("Server", Session.TITLE);
         mdn.setHeader("Mime-Version", "1.0");
         mdn.setHeader("AS2-To", msg.getPartnership().getSenderID(AS2Partnership.PID_AS2));
@@ -0,0 +1,106 @@
+package org.openas2.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.time.FastDateFormat;
+
+/**
+ * Thread-safe date formatting without locks.
+ * <p>
+ * Each pattern has one immutable formatter, shared by all threads. Patterns without milliseconds also keep the
+ * text of the last formatted second, so the many calls made within the same second (HTTP Date headers, message ids,
+ * storage paths) reuse it instead of formatting again.
+ */
+public final class CachedDateFormat
+{
+	/** RFC2822 format used in the HTTP and MDN Date headers: Wed, 04 Mar 2009 10:59:17 +0100 */
+	public static final String HTTP_DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss Z";
+
+	private static final ConcurrentHashMap<String, CachedDateFormat> INSTANCES =
+			new ConcurrentHashMap<String, CachedDateFormat>();
+
+	public static final CachedDateFormat HTTP_DATE = getInstance(HTTP_DATE_PATTERN);
+
+	private final FastDateFormat format;
+
+	private final boolean cacheable;
+
+	private volatile Rendered last;
+
+	private CachedDateFormat(String pattern)
+	{
+		this.format = FastDateFormat.getInstance(pattern);
+		this.cacheable = pattern.indexOf('S') < 0;
+	}
+
+	public static CachedDateFormat getInstance(String pattern)
+	{
+		CachedDateFormat instance = INSTANCES.get(pattern);
+
+		if (instance == null)
+		{
+			instance = new CachedDateFormat(pattern);
+			CachedDateFormat existing = INSTANCES.putIfAbsent(pattern, instance);
+			if (existing != null)
+			{
+				instance = existing;
+			}
+		}
+
+		return instance;
+	}
+
+	public String getPattern()
+	{
+		return format.getPattern();
+	}
+
+	public String format()
+	{
+		return format(System.currentTimeMillis());
+	}
+
+	public String format(Date date)
+	{
+		return format(date.getTime());
+	}
+
+	public String format(long millis)
+	{
+		if (!cacheable)
+		{
+			return format.format(millis);
+		}
+
+		long second = (millis < 0) ? ((millis + 1) / 1000) - 1 : millis / 1000;
+		Rendered rendered = last;
+
+		if ((rendered == null) || (rendered.second != second))
+		{
+			rendered = new Rendered(second, format.format(millis));
+			last = rendered;
+		}
+
+		return rendered.text;
+	}
+
+	public Date parse(String value) throws ParseException
+	{
+		return format.parse(value);
+	}
+
+	private static final class Rendered
+	{
+		private final long second;
+
+		private final String text;
+
+		Rendered(long second, String text)
+		{
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -1,41 +1,26 @@
 package org.openas2.util;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 
+/**
+ * Date formatting helpers, delegating to the lock-free {@link CachedDateFormat}.
+ */
 public class DateUtil
 {
-    private static final Map formatters = new HashMap();
-        
-	public static synchronized String formatDate(String format, Date value)
+	public static String formatDate(String format, Date value)
 	{
-        SimpleDateFormat df = getDateFormat(format);
-        return df.format(value);
-    }
-    
-	public static synchronized String formatDate(String format)
-	{
-        return formatDate(format, new Date());
-    }
-    
-	public static synchronized Date parseDate(String format, String value) throws ParseException
+		return CachedDateFormat.getInstance(format).format(value);
+	}
+
+	public static String formatDate(String format)
 	{
-        SimpleDateFormat df = getDateFormat(format);
-        return df.parse(value);
-    }
+		return CachedDateFormat.getInstance(format).format();
+	}
 
-	private static SimpleDateFormat getDateFormat(String format)
+	public static Date parseDate(String format, String value) throws ParseException
 	{
-        SimpleDateFormat df = (SimpleDateFormat) formatters.get(format);
-		if (df == null)
-		{
-            df = new SimpleDateFormat(format);
-            formatters.put(format, df);
-        }
-        return df;
-    }
+		return CachedDateFormat.getInstance(format).parse(value);
+	}
 }
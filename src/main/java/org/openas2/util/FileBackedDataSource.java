@@ -0,0 +1,60 @@
+package org.openas2.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * Data read from a file each time it is needed, so the content of a large file is never held in memory. Unlike
+ * javax.activation.FileDataSource, the content type is given rather than guessed from the file name.
+ */
+public class FileBackedDataSource implements DataSource
+{
+	private final File file;
+
+	private final String contentType;
+
+	private final String name;
+
+	public FileBackedDataSource(File file, String contentType, String name)
+	{
+		this.file = file;
+		this.contentType = (contentType == null) ? "application/octet-stream" : contentType;
+		this.name = name;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public String getContentType()
+	{
+		return contentType;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		return new BufferedInputStream(new FileInputStream(file), 65536);
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		throw new FileNotFoundException();
+	}
+}
@@ -5,23 +5,28 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class FileMonitor
 {
     public List listeners;
     private Date lastModified;
     private File file;
-    private Timer timer;
+    private TaskScheduler scheduler;
+    private TaskScheduler.ScheduledTask task;
     private boolean busy;
     private int interval;
 
-	public FileMonitor(File file, int interval)
+	/**
+	 * @param file the file monitored
+	 * @param interval seconds between two checks of the file
+	 * @param scheduler the scheduler running the checks
+	 */
+	public FileMonitor(File file, int interval, TaskScheduler scheduler)
 	{
         super();
         this.file = file;
         this.interval = interval;
+        this.scheduler = scheduler;
         start();
     }
 
@@ -102,17 +107,18 @@ public class FileMonitor
         start();
     }
 
-	public void start()
+	public synchronized void start()
 	{
-        timer = getTimer();
-        timer.scheduleAtFixedRate(new TimerTick(), 0, getInterval() * 1000);
+        task = scheduler.scheduleWithFixedDelay("FileMonitor " + getFilename(), new TimerTick(), 0,
+                getInterval() * 1000L);
     }
 
-	public void stop()
+	public synchronized void stop()
 	{
-		if (getTimer() != null)
+		if (task != null)
 		{
-            getTimer().cancel();
+            task.cancel();
+            task = null;
         }
     }
 
@@ -130,16 +136,6 @@ public class FileMonitor
         return false;
     }
 
-	protected Timer getTimer()
-	{
-		if (timer == null)
-		{
-            timer = new Timer(true);
-        }
-
-        return timer;
-    }
-
 	protected void updateListeners()
 	{
 		if (isModified())
@@ -164,7 +160,7 @@ public class FileMonitor
         setLastModified(new Date(getFile().lastModified()));
     }
 
-	private class TimerTick extends TimerTask
+	private class TimerTick implements Runnable
 	{
 		public void run()
 		{
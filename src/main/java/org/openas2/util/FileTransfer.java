@@ -0,0 +1,224 @@
+package org.openas2.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Moves and copies files with the least I/O.
+ * <p>
+ * A move is an atomic rename when source and destination are on the same file system, a metadata operation whatever
+ * the size of the file. Otherwise, and for copies, the data is transferred between file channels so the kernel can
+ * copy it without going through the heap. Streams are copied with a large buffer reused by each thread. Identical
+ * files are hard linked rather than copied when possible.
+ */
+public final class FileTransfer
+{
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Largest chunk given to one transferTo call, some platforms fail above 2 GB. */
+	private static final long MAX_TRANSFER = 64L * 1024 * 1024;
+
+	private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+	private FileTransfer()
+	{
+		super();
+	}
+
+	/**
+	 * Moves a file, replacing the destination.
+	 * 
+	 * @param src the file to move
+	 * @param dest the destination, replaced if it exists
+	 * @throws IOException the file could not be moved, the source is left untouched
+	 */
+	public static void move(File src, File dest) throws IOException
+	{
+		try
+		{
+			Files.move(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		catch (AtomicMoveNotSupportedException amnse)
+		{
+			// different file systems, copy then delete
+		}
+
+		copy(src, dest);
+
+		if (!src.delete())
+		{
+			dest.delete();
+			throw new IOException("Move failed, unable to delete " + src);
+		}
+	}
+
+	/**
+	 * Makes the destination a hard link to the source, so both names share the same data on disk. The file is copied
+	 * when the file system does not support hard links or the names are on different file systems.
+	 * 
+	 * @param src the existing file
+	 * @param dest the destination, replaced if it exists
+	 * @return true if linked, false if copied
+	 * @throws IOException the file could be neither linked nor copied
+	 */
+	public static boolean link(File src, File dest) throws IOException
+	{
+		// link under a temporary name then rename it, replacing the destination atomically
+		File linkFile = new File(dest.getParentFile(), "." + dest.getName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".lnk");
+
+		try
+		{
+			Files.createLink(linkFile.toPath(), src.toPath());
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			copy(src, dest);
+			return false;
+		}
+		catch (FileSystemException fse)
+		{
+			// FileSystemException covers the link crossing file systems, as well as a missing source
+			if (!src.exists())
+			{
+				throw fse;
+			}
+			copy(src, dest);
+			return false;
+		}
+
+		try
+		{
+			Files.move(linkFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException ioe)
+		{
+			linkFile.delete();
+			throw ioe;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies a file channel to channel, replacing the destination.
+	 * 
+	 * @param src the file to copy
+	 * @param dest the destination
+	 * @return the number of bytes copied
+	 * @throws IOException the file could not be copied
+	 */
+	public static long copy(File src, File dest) throws IOException
+	{
+		FileInputStream fIn = new FileInputStream(src);
+
+		try
+		{
+			FileOutputStream fOut = new FileOutputStream(dest);
+
+			try
+			{
+				FileChannel in = fIn.getChannel();
+				FileChannel out = fOut.getChannel();
+				long size = in.size();
+				long position = 0;
+
+				while (position < size)
+				{
+					long count = in.transferTo(position, Math.min(size - position, MAX_TRANSFER), out);
+					if (count <= 0)
+					{
+						break;
+					}
+					position += count;
+				}
+
+				return position;
+			}
+			finally
+			{
+				fOut.close();
+			}
+		}
+		finally
+		{
+			fIn.close();
+		}
+	}
+
+	/**
+	 * Copies a stream until its end.
+	 * 
+	 * @param in the stream to read
+	 * @param out the stream to write
+	 * @return the number of bytes copied
+	 * @throws IOException the stream could not be copied
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException
+	{
+		return copy(in, out, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Copies a stream until its end or a number of bytes is reached.
+	 * 
+	 * @param in the stream to read
+	 * @param out the stream to write
+	 * @param maxCount the maximum number of bytes to copy
+	 * @return the number of bytes copied
+	 * @throws IOException the stream could not be copied
+	 */
+	public static long copy(InputStream in, OutputStream out, long maxCount) throws IOException
+	{
+		byte[] buf = acquireBuffer();
+
+		try
+		{
+			long totalCount = 0;
+
+			while (totalCount < maxCount)
+			{
+				int count = in.read(buf, 0, (int)Math.min(buf.length, maxCount - totalCount));
+				if (count < 0)
+				{
+					break;
+				}
+				out.write(buf, 0, count);
+				totalCount += count;
+			}
+
+			return totalCount;
+		}
+		finally
+		{
+			BUFFERS.set(buf);
+		}
+	}
+
+	private static byte[] acquireBuffer()
+	{
+		byte[] buf = BUFFERS.get();
+
+		if (buf == null)
+		{
+			return new byte[BUFFER_SIZE];
+		}
+
+		// a nested copy on the same thread gets its own buffer
+		BUFFERS.set(null);
+		return buf;
+	}
+}
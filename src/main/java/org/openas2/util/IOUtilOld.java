@@ -3,7 +3,6 @@ package org.openas2.util;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -50,7 +49,7 @@ public class IOUtilOld
 		return baos.toByteArray();
 	}
 
-	public static String getTransferRate(int bytes, ProfilerStub stub)
+	public static String getTransferRate(long bytes, ProfilerStub stub)
 	{
 		StringBuffer buf = new StringBuffer();
 		buf.append(bytes).append(" bytes in ");
@@ -93,32 +92,6 @@ public class IOUtilOld
 		return buf.toString();
 	}
 
-	public static File getUnique(File dir, String filename)
-	{
-		File test;
-		int counter = -1;
-		filename = cleanFilename(filename);
-
-		while (true)
-		{
-			if (counter == -1)
-			{
-				test = new File(dir, filename);
-			}
-			else
-			{
-				test = new File(dir, filename + "." + Integer.toString(counter));
-			}
-
-			if (!test.exists())
-			{
-				return test;
-			}
-
-			counter++;
-		}
-	}
-
 	public static String cleanFilename(String filename)
 	{
 		byte[] fnBytes = filename.getBytes();
@@ -140,59 +113,18 @@ public class IOUtilOld
 	public static int copy(InputStream in, OutputStream out)
 			throws IOException
 	{
-		int totalCount = 0;
-		byte[] buf = new byte[4096];
-		int count = 0;
-
-		while (count >= 0)
-		{
-			count = in.read(buf);
-			totalCount += count;
-
-			if (count > 0)
-			{
-				out.write(buf, 0, count);
-			}
-		}
-
-		return totalCount;
+		return (int)FileTransfer.copy(in, out);
 	}
 
 	public static int copy(InputStream in, OutputStream out, int contentSize)
 			throws IOException
 	{
-		int totalCount = 0;
-		byte[] buf = new byte[4096];
-		int bytesIn = 0;
-
-		while ((bytesIn >= 0) && (totalCount < contentSize))
-		{
-			bytesIn = in.read(buf);
-			totalCount += bytesIn;
-
-			if (bytesIn > 0)
-			{
-				out.write(buf, 0, bytesIn);
-			}
-		}
-
-		return totalCount;
+		return (int)FileTransfer.copy(in, out, contentSize);
 	}
 
 	public static void copyFile(File src, File dest) throws IOException
 	{
-		FileInputStream fIn = new FileInputStream(src);
-		FileOutputStream fOut = new FileOutputStream(dest);
-
-		try
-		{
-			copy(fIn, fOut);
-		}
-		finally
-		{
-			fIn.close();
-			fOut.close();
-		}
+		FileTransfer.copy(src, dest);
 	}
 
 	// move the file to an error directory
@@ -227,13 +159,7 @@ public class IOUtilOld
 
 	public static void moveFile(File src, File dest) throws IOException
 	{
-		copyFile(src, dest);
-
-		if (!src.delete())
-		{
-			dest.delete();
-			throw new IOException("Move failed, unable to delete " + src);
-		}
+		FileTransfer.move(src, dest);
 	}
 
 	public static File moveFile(File src, File dest, boolean overwrite, boolean rename)
@@ -243,7 +169,7 @@ public class IOUtilOld
 		{
 			if (rename)
 			{
-				dest = getUnique(dest.getAbsoluteFile().getParentFile(), dest.getName());
+				dest = UniqueFileAllocator.allocate(dest.getAbsoluteFile().getParentFile(), dest.getName());
 			}
 			else
 			{
@@ -251,13 +177,7 @@ public class IOUtilOld
 			}
 		}
 
-		copyFile(src, dest);
-
-		if (!src.delete())
-		{
-			dest.delete();
-			throw new IOException("Move failed, unable to delete " + src);
-		}
+		FileTransfer.move(src, dest);
 
 		return dest;
 	}
@@ -0,0 +1,97 @@
+package org.openas2.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates the unique part of Message-IDs without locks or shared <code>Random</code> state.
+ * <p>
+ * The unique part is made of the node ID and a 64 bit tick: the current time in milliseconds shifted left by
+ * {@value #SEQUENCE_BITS} bits plus a sequence. Ticks are strictly increasing in the process, so up to
+ * {@value #SEQUENCE_SIZE} IDs per millisecond are generated before borrowing from the next millisecond, and a restart
+ * never reuses a tick as long as the clock has moved on. IDs are unique across nodes when every node is configured with
+ * a different node ID, with the <code>nodeid</code> attribute of the configuration root element or the
+ * {@value #PROPERTY_NODE_ID} system property. Without it a random node ID is chosen at startup.
+ */
+public final class MessageIdGenerator
+{
+	public static final String PROPERTY_NODE_ID = "org.openas2.nodeid";
+
+	private static final int SEQUENCE_BITS = 10;
+
+	private static final int SEQUENCE_SIZE = 1 << SEQUENCE_BITS;
+
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(MessageIdGenerator.class);
+
+	private static final AtomicLong LAST_TICK = new AtomicLong();
+
+	private static volatile String nodeId = initNodeId();
+
+	private MessageIdGenerator()
+	{
+		super();
+	}
+
+	public static String getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * Sets the ID of this node, must be different on every node sharing partners.
+	 * 
+	 * @param id the node ID, cleaned to valid filename characters
+	 */
+	public static void setNodeId(String id)
+	{
+		if ((id != null) && (id.trim().length() > 0))
+		{
+			nodeId = IOUtilOld.cleanFilename(id.trim());
+		}
+	}
+
+	/**
+	 * Returns a token unique for this node, like <code>1a2b3c4d5e6f-node1</code>.
+	 * 
+	 * @return the unique token
+	 */
+	public static String nextUnique()
+	{
+		return Long.toString(nextTick(), Character.MAX_RADIX) + "-" + nodeId;
+	}
+
+	static long nextTick()
+	{
+		long now = System.currentTimeMillis() << SEQUENCE_BITS;
+
+		while (true)
+		{
+			long last = LAST_TICK.get();
+			long next = (now > last) ? now : last + 1;
+
+			if (LAST_TICK.compareAndSet(last, next))
+			{
+				return next;
+			}
+		}
+	}
+
+	private static String initNodeId()
+	{
+		String id = System.getProperty(PROPERTY_NODE_ID);
+
+		if ((id != null) && (id.trim().length() > 0))
+		{
+			return IOUtilOld.cleanFilename(id.trim());
+		}
+
+		id = Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), Character.MAX_RADIX);
+		LOGGER.info("no node id configured, using the random node id {}", id);
+
+		return id;
+	}
+}
@@ -0,0 +1,338 @@
+package org.openas2.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the periodic and delayed tasks of a session (polling of directories, resends, monitoring of files, storage
+ * maintenance) on one pool of threads, rather than on a timer thread per module.
+ * <p>
+ * A task throwing an exception is logged and scheduled again, where it would silently stop a
+ * <code>java.util.Timer</code>. The time taken by the runs of each task, and how late they started, is kept by task
+ * name, see {@link #getStatistics()}.
+ */
+public class TaskScheduler
+{
+	/** Logger for the class. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(TaskScheduler.class);
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final Map<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+	/**
+	 * @param name prefix of the names of the threads
+	 * @param threads number of threads running the tasks
+	 */
+	public TaskScheduler(final String name, int threads)
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return the default number of threads, the number of processors and at least 4
+	 */
+	public static int getDefaultThreads()
+	{
+		return Math.max(4, Runtime.getRuntime().availableProcessors());
+	}
+
+	public void setThreads(int threads)
+	{
+		executor.setCorePoolSize(threads);
+	}
+
+	public int getThreads()
+	{
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Runs a task every period, the next run starts late if a run takes longer than the period.
+	 *
+	 * @param name the name of the task in the statistics
+	 * @param task the task
+	 * @param initialDelay milliseconds before the first run
+	 * @param period milliseconds between the starts of two runs
+	 * @return the scheduled task, to cancel it
+	 */
+	public ScheduledTask scheduleAtFixedRate(String name, Runnable task, long initialDelay, long period)
+	{
+		ScheduledTask scheduled = new ScheduledTask(getStatistics(name), task, initialDelay, period, true);
+		scheduled.future = executor.scheduleAtFixedRate(scheduled, initialDelay, period, TimeUnit.MILLISECONDS);
+
+		return scheduled;
+	}
+
+	/**
+	 * Runs a task with a delay between the end of a run and the start of the next one.
+	 *
+	 * @param name the name of the task in the statistics
+	 * @param task the task
+	 * @param initialDelay milliseconds before the first run
+	 * @param delay milliseconds between the end of a run and the start of the next one
+	 * @return the scheduled task, to cancel it
+	 */
+	public ScheduledTask scheduleWithFixedDelay(String name, Runnable task, long initialDelay, long delay)
+	{
+		ScheduledTask scheduled = new ScheduledTask(getStatistics(name), task, initialDelay, delay, false);
+		scheduled.future = executor.scheduleWithFixedDelay(scheduled, initialDelay, delay, TimeUnit.MILLISECONDS);
+
+		return scheduled;
+	}
+
+	/**
+	 * Runs a task once.
+	 *
+	 * @param name the name of the task in the statistics
+	 * @param task the task
+	 * @param delay milliseconds before the run
+	 * @return the scheduled task, to cancel it
+	 */
+	public ScheduledTask schedule(String name, Runnable task, long delay)
+	{
+		ScheduledTask scheduled = new ScheduledTask(getStatistics(name), task, delay, 0, false);
+		scheduled.future = executor.schedule(scheduled, delay, TimeUnit.MILLISECONDS);
+
+		return scheduled;
+	}
+
+	/**
+	 * @return the statistics of the tasks, by name
+	 */
+	public List<Statistics> getStatistics()
+	{
+		return new ArrayList<Statistics>(statistics.values());
+	}
+
+	/**
+	 * Cancels the tasks, the runs in progress are finished.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	private Statistics getStatistics(String name)
+	{
+		Statistics stats = statistics.get(name);
+		if (stats == null)
+		{
+			synchronized (statistics)
+			{
+				stats = statistics.get(name);
+				if (stats == null)
+				{
+					stats = new Statistics(name);
+					statistics.put(name, stats);
+				}
+			}
+		}
+
+		return stats;
+	}
+
+	/**
+	 * A task scheduled, measuring its runs.
+	 */
+	public static class ScheduledTask implements Runnable
+	{
+		private final Statistics stats;
+
+		private final Runnable task;
+
+		private final long period;
+
+		private final boolean fixedRate;
+
+		/** Time the next run is due. */
+		private long due;
+
+		private volatile ScheduledFuture<?> future;
+
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		ScheduledTask(Statistics stats, Runnable task, long initialDelay, long period, boolean fixedRate)
+		{
+			this.stats = stats;
+			this.task = task;
+			this.period = period;
+			this.fixedRate = fixedRate;
+			this.due = System.currentTimeMillis() + initialDelay;
+
+			stats.scheduled.incrementAndGet();
+		}
+
+		@Override
+		public void run()
+		{
+			long start = System.currentTimeMillis();
+			boolean failed = false;
+
+			try
+			{
+				task.run();
+			}
+			catch (Throwable t)
+			{
+				// the task is run again at its next time
+				LOGGER.error("task " + stats.name + " failed", t);
+				failed = true;
+			}
+			finally
+			{
+				long end = System.currentTimeMillis();
+				stats.record(Math.max(0, start - due), end - start, failed);
+
+				if (period == 0)
+				{
+					finish();
+				}
+				else
+				{
+					due = fixedRate ? due + period : end + period;
+				}
+			}
+		}
+
+		/**
+		 * Cancels the next runs, a run in progress is finished.
+		 */
+		public void cancel()
+		{
+			ScheduledFuture<?> scheduled = future;
+			if (scheduled != null)
+			{
+				scheduled.cancel(false);
+			}
+			finish();
+		}
+
+		private void finish()
+		{
+			if (finished.compareAndSet(false, true))
+			{
+				stats.scheduled.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Runs of the tasks of a name.
+	 */
+	public static class Statistics
+	{
+		private final String name;
+
+		private final AtomicInteger scheduled = new AtomicInteger();
+
+		private long runs;
+
+		private long failures;
+
+		private long totalTime;
+
+		private long maxTime;
+
+		private long lastLag;
+
+		private long maxLag;
+
+		Statistics(String name)
+		{
+			this.name = name;
+		}
+
+		synchronized void record(long lag, long time, boolean failed)
+		{
+			runs++;
+			if (failed)
+			{
+				failures++;
+			}
+			totalTime += time;
+			maxTime = Math.max(maxTime, time);
+			lastLag = lag;
+			maxLag = Math.max(maxLag, lag);
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return the number of tasks of the name scheduled
+		 */
+		public int getScheduled()
+		{
+			return scheduled.get();
+		}
+
+		public synchronized long getRuns()
+		{
+			return runs;
+		}
+
+		public synchronized long getFailures()
+		{
+			return failures;
+		}
+
+		/**
+		 * @return the average milliseconds of a run
+		 */
+		public synchronized long getAverageTime()
+		{
+			return (runs == 0) ? 0 : totalTime / runs;
+		}
+
+		public synchronized long getMaxTime()
+		{
+			return maxTime;
+		}
+
+		/**
+		 * @return the milliseconds the last run started after it was due
+		 */
+		public synchronized long getLastLag()
+		{
+			return lastLag;
+		}
+
+		public synchronized long getMaxLag()
+		{
+			return maxLag;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return name + ": " + scheduled.get() + " scheduled, " + runs + " runs, " + failures + " failed, "
+					+ getAverageTime() + " ms average, " + maxTime + " ms max, lag " + lastLag + " ms last, " + maxLag
+					+ " ms max";
+		}
+	}
+}
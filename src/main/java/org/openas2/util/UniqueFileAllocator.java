@@ -0,0 +1,240 @@
+package org.openas2.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates unique file names by creating the file exclusively, or by reserving the name.
+ * <p>
+ * A free name is taken at once. When it is already used the name gets a numeric suffix, <code>name.N</code>, taken
+ * from a counter kept per base name. The counters of a directory are seeded once, on the first collision in that
+ * directory, from a single listing giving the highest suffix of each name, so further allocations need no probing.
+ * <p>
+ * A name is reserved, rather than allocated, when the file must only appear once written, e.g. moved from a temporary
+ * directory. Reservations are kept in memory until {@link #release(File)}: nothing is written in the directory and a
+ * crash leaves no name taken.
+ */
+public final class UniqueFileAllocator
+{
+	/** Directories whose counters are kept, they are all dropped beyond it and seeded again when needed. */
+	private static final int MAX_DIRECTORIES = 1000;
+
+	/** Counters kept for a directory, the names beyond it are probed from the first suffix. */
+	private static final int MAX_COUNTERS = 10000;
+
+	/** Longest numeric suffix, so it fits a long. */
+	private static final int MAX_SUFFIX_LENGTH = 18;
+
+	private static final ConcurrentHashMap<Path, ConcurrentHashMap<String, AtomicLong>> COUNTERS =
+			new ConcurrentHashMap<Path, ConcurrentHashMap<String, AtomicLong>>();
+
+	/** Absolute paths of the names reserved. */
+	private static final Set<Path> RESERVED = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+	private UniqueFileAllocator()
+	{
+		super();
+	}
+
+	/**
+	 * Creates a new empty file in a directory, named after a filename.
+	 *
+	 * @param dir the directory, created if missing
+	 * @param filename the wanted name, cleaned of invalid characters
+	 * @return the created file, owned by the caller
+	 * @throws IOException the file can not be created
+	 */
+	public static File allocate(File dir, String filename) throws IOException
+	{
+		return take(dir, filename, false);
+	}
+
+	/**
+	 * Reserves the name of a new file in a directory, named after a filename, without creating the file. The name is
+	 * neither allocated nor reserved again by this server until released.
+	 *
+	 * @param dir the directory, created if missing
+	 * @param filename the wanted name, cleaned of invalid characters
+	 * @return the file reserved, not existing, to be released by the caller once written or on failure
+	 * @throws IOException the name can not be reserved
+	 */
+	public static File reserve(File dir, String filename) throws IOException
+	{
+		return take(dir, filename, true);
+	}
+
+	/**
+	 * Releases the name of a file reserved, once the file is written or failed. Does nothing for a file not reserved.
+	 *
+	 * @param file the file reserved
+	 */
+	public static void release(File file)
+	{
+		RESERVED.remove(getKey(file.toPath()));
+	}
+
+	private static File take(File dir, String filename, boolean reserve) throws IOException
+	{
+		filename = IOUtilOld.cleanFilename(filename);
+		Path dirPath = getKey(dir.toPath());
+		Files.createDirectories(dirPath);
+
+		Path path = dirPath.resolve(filename);
+		if (take(path, reserve))
+		{
+			return path.toFile();
+		}
+
+		AtomicLong counter = getCounter(dirPath, filename);
+
+		while (true)
+		{
+			path = dirPath.resolve(filename + "." + counter.getAndIncrement());
+			if (take(path, reserve))
+			{
+				return path.toFile();
+			}
+			// taken outside of this process, try the next suffix
+		}
+	}
+
+	private static boolean take(Path path, boolean reserve) throws IOException
+	{
+		if (reserve)
+		{
+			if (Files.exists(path) || !RESERVED.add(path))
+			{
+				return false;
+			}
+
+			if (Files.exists(path))
+			{
+				// allocated meanwhile
+				RESERVED.remove(path);
+				return false;
+			}
+
+			return true;
+		}
+
+		try
+		{
+			Files.createFile(path);
+		}
+		catch (FileAlreadyExistsException faee)
+		{
+			return false;
+		}
+
+		if (RESERVED.contains(path))
+		{
+			// reserved meanwhile, the file of the reservation is moved to this name
+			Files.deleteIfExists(path);
+			return false;
+		}
+
+		return true;
+	}
+
+	private static Path getKey(Path path)
+	{
+		return path.toAbsolutePath().normalize();
+	}
+
+	private static AtomicLong getCounter(Path dirPath, String filename) throws IOException
+	{
+		ConcurrentHashMap<String, AtomicLong> counters = COUNTERS.get(dirPath);
+
+		if (counters == null)
+		{
+			if (COUNTERS.size() >= MAX_DIRECTORIES)
+			{
+				COUNTERS.clear();
+			}
+
+			counters = seed(dirPath);
+			ConcurrentHashMap<String, AtomicLong> existing = COUNTERS.putIfAbsent(dirPath, counters);
+			if (existing != null)
+			{
+				counters = existing;
+			}
+		}
+
+		AtomicLong counter = counters.get(filename);
+		if (counter == null)
+		{
+			// no suffixed file of that name when the directory was listed
+			counter = new AtomicLong();
+			if (counters.size() < MAX_COUNTERS)
+			{
+				AtomicLong existing = counters.putIfAbsent(filename, counter);
+				if (existing != null)
+				{
+					counter = existing;
+				}
+			}
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Lists a directory once for the next suffix of each name found with a numeric suffix.
+	 */
+	private static ConcurrentHashMap<String, AtomicLong> seed(Path dirPath) throws IOException
+	{
+		ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath);
+
+		try
+		{
+			for (Path path : stream)
+			{
+				String name = path.getFileName().toString();
+				int dot = name.lastIndexOf('.');
+
+				if ((dot <= 0) || (dot == name.length() - 1) || (name.length() - dot - 1 > MAX_SUFFIX_LENGTH)
+						|| !Character.isDigit(name.charAt(dot + 1)))
+				{
+					continue;
+				}
+
+				long next;
+				try
+				{
+					next = Long.parseLong(name.substring(dot + 1)) + 1;
+				}
+				catch (NumberFormatException nfe)
+				{
+					// not a suffixed name
+					continue;
+				}
+
+				String base = name.substring(0, dot);
+				AtomicLong counter = counters.get(base);
+				if (counter == null)
+				{
+					counters.put(base, new AtomicLong(next));
+				}
+				else if (counter.get() < next)
+				{
+					counter.set(next);
+				}
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		return counters;
+	}
+}
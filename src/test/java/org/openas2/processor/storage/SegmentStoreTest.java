@@ -0,0 +1,200 @@
+package org.openas2.processor.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentStoreTest
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Size of the records appended by {@link #append(SegmentStore, String, String)}, 10 character payloads. */
+	private static final int RECORD_SIZE = 4 + 1 + 8 + 2 + 4 + 8 + 10 + 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAppendAndExtract() throws Exception
+	{
+		SegmentStore store = new SegmentStore(folder.getRoot(), 1024, false);
+
+		append(store, "<msg1>", "payload 01");
+		append(store, "msg2", "payload 02");
+		append(store, "msg1", "payload 03");
+		store.append(SegmentStore.TYPE_MDN, "msg2", stream("compressed"), new GzipCodec());
+
+		assertEquals("payload 03", extract(store, "msg1", SegmentStore.TYPE_MESSAGE));
+		assertEquals("payload 02", extract(store, "<msg2>", SegmentStore.TYPE_MESSAGE));
+		assertEquals("compressed", extract(store, "msg2", SegmentStore.TYPE_MDN));
+		assertFalse(store.contains("msg1", SegmentStore.TYPE_MDN));
+		assertFalse(store.contains("msg3", SegmentStore.TYPE_MESSAGE));
+
+		store.close();
+	}
+
+	@Test
+	public void testRecoveryWithoutIndex() throws Exception
+	{
+		File dir = folder.getRoot();
+		SegmentStore store = new SegmentStore(dir, 1024, false);
+		append(store, "msg1", "payload 01");
+		append(store, "msg2", "payload 02");
+		store.close();
+
+		// lost index and a record partially written
+		assertTrue(new File(dir, "0000000001.idx").delete());
+		FileOutputStream out = new FileOutputStream(new File(dir, "0000000001.seg"), true);
+		out.write(new byte[] { 0x4F, 0x41, 0x53, 0x31, 1, 0, 0 });
+		out.close();
+
+		store = new SegmentStore(dir, 1024, false);
+		assertEquals("payload 01", extract(store, "msg1", SegmentStore.TYPE_MESSAGE));
+		assertEquals("payload 02", extract(store, "msg2", SegmentStore.TYPE_MESSAGE));
+		assertEquals(2 * RECORD_SIZE, new File(dir, "0000000001.seg").length());
+
+		append(store, "msg3", "payload 03");
+		store.close();
+
+		store = new SegmentStore(dir, 1024, false);
+		assertEquals("payload 01", extract(store, "msg1", SegmentStore.TYPE_MESSAGE));
+		assertEquals("payload 03", extract(store, "msg3", SegmentStore.TYPE_MESSAGE));
+		store.close();
+	}
+
+	@Test
+	public void testRetentionUsesRecordTimestamps() throws Exception
+	{
+		File dir = folder.getRoot();
+		SegmentStore store = new SegmentStore(dir, 2 * RECORD_SIZE, false);
+
+		// segment 1 holds msg1 and msg2, segment 2 the newer msg2
+		append(store, "msg1", "payload 01");
+		append(store, "msg2", "payload 02");
+		append(store, "msg2", "payload 03");
+
+		// msg1 is moved to segment 2, which is then full
+		assertEquals(1, store.compact(0.75));
+		assertEquals("payload 01", extract(store, "msg1", SegmentStore.TYPE_MESSAGE));
+		store.close();
+
+		Thread.sleep(50);
+		long olderThan = System.currentTimeMillis();
+		Thread.sleep(50);
+
+		store = new SegmentStore(dir, 2 * RECORD_SIZE, false);
+		append(store, "msg3", "payload 04");
+
+		// segment 2 was just written by the compaction, its records are old
+		assertEquals(1, store.applyRetention(olderThan));
+		assertFalse(store.contains("msg1", SegmentStore.TYPE_MESSAGE));
+		assertFalse(store.contains("msg2", SegmentStore.TYPE_MESSAGE));
+		assertEquals("payload 04", extract(store, "msg3", SegmentStore.TYPE_MESSAGE));
+		store.close();
+	}
+
+	@Test
+	public void testCompactionDropsExpiredRecords() throws Exception
+	{
+		SegmentStore store = new SegmentStore(folder.getRoot(), 2 * RECORD_SIZE, false);
+
+		append(store, "msg1", "payload 01");
+		Thread.sleep(50);
+		long olderThan = System.currentTimeMillis();
+		Thread.sleep(50);
+		append(store, "msg2", "payload 02");
+		append(store, "msg2", "payload 03");
+
+		// segment 1 holds a newer record, it is kept
+		assertEquals(0, store.applyRetention(olderThan));
+		assertEquals(1, store.compact(0.75));
+		assertFalse(store.contains("msg1", SegmentStore.TYPE_MESSAGE));
+		assertEquals("payload 03", extract(store, "msg2", SegmentStore.TYPE_MESSAGE));
+		store.close();
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception
+	{
+		File dir = folder.getRoot();
+		final SegmentStore store = new SegmentStore(dir, 10 * RECORD_SIZE, false);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t = 0; t < 4; t++)
+		{
+			final int thread = t;
+			Thread appender = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int i = 0; i < 25; i++)
+						{
+							append(store, "msg" + thread + "-" + i, String.format("payload%03d", thread * 100 + i));
+						}
+					}
+					catch (Throwable e)
+					{
+						synchronized (failures)
+						{
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads.add(appender);
+			appender.start();
+		}
+
+		for (Thread appender : threads)
+		{
+			appender.join();
+		}
+		store.close();
+		assertTrue(failures.toString(), failures.isEmpty());
+
+		SegmentStore reopened = new SegmentStore(dir, 10 * RECORD_SIZE, false);
+		for (int t = 0; t < 4; t++)
+		{
+			for (int i = 0; i < 25; i++)
+			{
+				assertEquals(String.format("payload%03d", t * 100 + i),
+						extract(reopened, "msg" + t + "-" + i, SegmentStore.TYPE_MESSAGE));
+			}
+		}
+		reopened.close();
+	}
+
+	private static void append(SegmentStore store, String messageId, String payload) throws IOException
+	{
+		store.append(SegmentStore.TYPE_MESSAGE, messageId, stream(payload));
+	}
+
+	private static ByteArrayInputStream stream(String payload)
+	{
+		return new ByteArrayInputStream(payload.getBytes(UTF8));
+	}
+
+	private static String extract(SegmentStore store, String messageId, byte type) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(store.extract(messageId, type, out));
+		return new String(out.toByteArray(), UTF8);
+	}
+}